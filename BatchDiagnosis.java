@@ -0,0 +1,161 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Headless batch mode: streams id|name|symptoms lines from a file, diagnoses them in
+// parallel against one shared KnowledgeBase and writes the records in input order.
+// Only a fixed number of chunks is in flight, so memory does not grow with the input.
+final class BatchDiagnosis {
+    private static final int CHUNK_LINES = 4096;
+    private static final String HEADER = "patient id|patient name|symptoms list|possible disease";
+
+    private record Chunk(String records, List<String> errors, int lines) {}
+
+    private final KnowledgeBase knowledgeBase;
+    private final int threads;
+
+    BatchDiagnosis(KnowledgeBase knowledgeBase, int threads) {
+        this.knowledgeBase = knowledgeBase;
+        this.threads = threads;
+    }
+
+    // Usage: java MedicalAssistant --batch <input> <output>
+    static int runFromCommandLine(String[] args) {
+        if (args.length < 3) {
+            System.err.println("Usage: java MedicalAssistant --batch <input file> <output file>");
+            return 2;
+        }
+        KnowledgeBaseManager manager = new KnowledgeBaseManager();
+        String loadError = manager.load();
+        if (loadError != null) {
+            System.err.println(loadError);
+            return 1;
+        }
+        BatchDiagnosis batch = new BatchDiagnosis(manager.current(), Runtime.getRuntime().availableProcessors());
+        try {
+            return batch.run(Path.of(args[1]), Path.of(args[2])) == 0 ? 0 : 1;
+        } catch (IOException e) {
+            System.err.println("Error running batch diagnosis: " + e.getMessage());
+            return 1;
+        }
+    }
+
+    // Returns the number of lines that could not be diagnosed
+    public long run(Path input, Path output) throws IOException {
+        long start = System.nanoTime();
+        long lines = 0;
+        long errors = 0;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        ArrayDeque<Future<Chunk>> inFlight = new ArrayDeque<>();
+        try (BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8);
+             BufferedWriter writer = Files.newBufferedWriter(output, StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            writer.write('\n');
+            long lineNumber = 1;
+            String line = reader.readLine();
+            if (line != null && line.equalsIgnoreCase(HEADER)) {
+                line = reader.readLine();
+                lineNumber++;
+            }
+            while (line != null) {
+                String[] chunk = new String[CHUNK_LINES];
+                int count = 0;
+                for (; count < CHUNK_LINES && line != null; count++) {
+                    chunk[count] = line;
+                    line = reader.readLine();
+                }
+                long firstLine = lineNumber;
+                int chunkSize = count;
+                lineNumber += count;
+                inFlight.add(pool.submit(() -> diagnoseChunk(chunk, chunkSize, firstLine)));
+                // Keep a couple of chunks per worker queued; write the oldest once the window is full
+                if (inFlight.size() >= threads * 2) {
+                    Chunk done = await(inFlight.poll());
+                    lines += done.lines();
+                    errors += write(writer, done);
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                Chunk done = await(inFlight.poll());
+                lines += done.lines();
+                errors += write(writer, done);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Diagnosed %d lines (%d errors) in %.2f s: %.0f lines/s on %d threads%n",
+                lines, errors, seconds, lines / Math.max(seconds, 1e-9), threads);
+        System.out.print(Metrics.dump());
+        return errors;
+    }
+
+    private Chunk diagnoseChunk(String[] lines, int count, long firstLine) {
+        StringBuilder records = new StringBuilder(count * 64);
+        List<String> errors = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String line = lines[i];
+            if (line.isBlank()) {
+                continue;
+            }
+            try {
+                records.append(diagnoseLine(line)).append('\n');
+            } catch (UnrecognizedSymptomException | UnrecognizedDiseaseException | IllegalArgumentException e) {
+                errors.add("Line " + (firstLine + i) + ": " + e.getMessage());
+            }
+        }
+        return new Chunk(records.toString(), errors, count);
+    }
+
+    private String diagnoseLine(String line) throws UnrecognizedSymptomException, UnrecognizedDiseaseException {
+        int first = line.indexOf('|');
+        int second = first < 0 ? -1 : line.indexOf('|', first + 1);
+        if (second < 0) {
+            throw new IllegalArgumentException("Expected patient id|patient name|symptoms list");
+        }
+        // A fourth column (a previous diagnosis) is ignored and recomputed
+        int third = line.indexOf('|', second + 1);
+        String symptoms = third < 0 ? line.substring(second + 1) : line.substring(second + 1, third);
+
+        PatientSession session = new PatientSession(knowledgeBase,
+                line.substring(0, first).trim(), line.substring(first + 1, second).trim());
+        for (String symptom : symptoms.split(",")) {
+            if (!symptom.isBlank()) {
+                session.addSymptom(symptom);
+            }
+        }
+        String[] diagnoses = session.diagnosis();
+        return MedicalDataBase.formatRecord(session.getPatientId(), session.getPatientName(),
+                session.getPatientSymptoms(), diagnoses);
+    }
+
+    private static long write(BufferedWriter writer, Chunk chunk) throws IOException {
+        writer.write(chunk.records());
+        for (String error : chunk.errors()) {
+            System.err.println(error);
+        }
+        return chunk.errors().size();
+    }
+
+    private static Chunk await(Future<Chunk> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while diagnosing", e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,613 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Inverted index from symptom to the encounters that recorded it, for cohort queries such
+// as "fever and rash" over the EncounterLog. An encounter is identified by its log position.
+// Each segment has its own postings, one list per symptom, as varint deltas in blocks of
+// BLOCK_SIZE entries; a skip table holds every block's first position and byte offset, so
+// intersecting a rare symptom with a common one skips whole blocks of the common list.
+//
+//   encounters-000001.sealed.postings   the sealed file's size, a directory of (symptom,
+//                                       count, skip offset, data offset), then the lists;
+//                                       written once the segment is sealed, read memory-mapped
+//
+// Open segments are indexed in memory as records are written and re-read from the segment
+// file on open, which is bounded by the segment size.
+final class CohortIndex implements RecordJournal.Listener, AutoCloseable {
+    private static final String SUFFIX = ".sealed.postings";
+    private static final int MAGIC = 0x4D44504F; // "MDPO"
+    private static final int VERSION = 1;
+    private static final int BLOCK_SIZE = 128;
+    private static final int SKIP_ENTRY_BYTES = 12;
+
+    // Matching encounters: how many, and the first few records in log order
+    record Cohort(long count, List<String> records) {}
+
+    // Positions of one symptom's encounters in one segment, appended in increasing order
+    private static final class Postings {
+        byte[] data = new byte[16];
+        byte[] skip = new byte[SKIP_ENTRY_BYTES];
+        int count;
+        int size;
+        long last;
+
+        void add(long position) {
+            if (count > 0 && position <= last) {
+                return; // The same symptom listed twice in one record
+            }
+            if (count % BLOCK_SIZE == 0) {
+                int entry = count / BLOCK_SIZE * SKIP_ENTRY_BYTES;
+                if (entry == skip.length) {
+                    skip = Arrays.copyOf(skip, skip.length * 2);
+                }
+                ByteBuffer.wrap(skip).putLong(entry, position).putInt(entry + 8, size);
+            } else {
+                if (size + 10 > data.length) {
+                    data = Arrays.copyOf(data, Math.max(data.length * 2, size + 10));
+                }
+                size = putVarint(data, size, position - last);
+            }
+            last = position;
+            count++;
+        }
+
+        int skipBytes() {
+            return (count + BLOCK_SIZE - 1) / BLOCK_SIZE * SKIP_ENTRY_BYTES;
+        }
+
+        Cursor cursor() {
+            return new ListCursor(ByteBuffer.wrap(skip), 0, ByteBuffer.wrap(data), 0, count);
+        }
+    }
+
+    // One segment's lists, indexed by symptom ID; sealed segments read them from the mapped file.
+    // Offsets point into the sealed file only once the sealed Segment has replaced the open one,
+    // so records are read from whichever file this Segment was built from.
+    private static final class Segment {
+        final boolean sealed;
+        Postings[] lists = new Postings[0];
+        MappedByteBuffer mapped;
+        int[] counts = new int[0];
+        int[] skipOffsets = new int[0];
+        int[] dataOffsets = new int[0];
+
+        Segment(boolean sealed) {
+            this.sealed = sealed;
+        }
+
+        Cursor cursor(int symptom) {
+            if (mapped == null) {
+                Postings list = symptom < lists.length ? lists[symptom] : null;
+                return list == null ? null : list.cursor();
+            }
+            if (symptom >= counts.length || counts[symptom] == 0) {
+                return null;
+            }
+            return new ListCursor(mapped, skipOffsets[symptom], mapped, dataOffsets[symptom], counts[symptom]);
+        }
+
+        void add(int symptom, long position) {
+            if (symptom >= lists.length) {
+                lists = Arrays.copyOf(lists, Math.max(symptom + 1, lists.length * 2));
+            }
+            if (lists[symptom] == null) {
+                lists[symptom] = new Postings();
+            }
+            lists[symptom].add(position);
+        }
+    }
+
+    private final EncounterLog log;
+    private final Map<String, Integer> symptomIds = new HashMap<>();
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private final Map<Integer, FileChannel> readers = new HashMap<>();
+
+    CohortIndex(EncounterLog log) throws IOException {
+        this.log = log;
+        for (int segment : log.segments()) {
+            if (log.isSealed(segment)) {
+                openSealed(segment);
+            } else {
+                Segment open = new Segment(false);
+                try (FileChannel records = FileChannel.open(log.openFile(segment), StandardOpenOption.READ)) {
+                    RecordJournal.replay(records, 0, written -> index(open, written));
+                }
+                segments.put(segment, open);
+            }
+        }
+    }
+
+    private synchronized int symptomId(String symptom) {
+        Integer id = symptomIds.get(symptom);
+        if (id == null) {
+            id = symptomIds.size();
+            symptomIds.put(symptom, id);
+        }
+        return id;
+    }
+
+    // Adds records to a segment's lists; positions are kept segment-relative
+    private void index(Segment segment, List<RecordJournal.WrittenRecord> records) {
+        for (RecordJournal.WrittenRecord record : records) {
+            long offset = EncounterLog.offsetOf(record.position());
+            String line = record.line();
+            int first = line.indexOf('|');
+            int second = first < 0 ? -1 : line.indexOf('|', first + 1);
+            if (second < 0) {
+                continue;
+            }
+            int third = line.indexOf('|', second + 1);
+            int end = third < 0 ? line.length() : third;
+            int start = second + 1;
+            while (start <= end) {
+                int comma = line.indexOf(',', start);
+                int stop = comma < 0 || comma > end ? end : comma;
+                String symptom = line.substring(start, stop).trim().toLowerCase();
+                if (!symptom.isEmpty()) {
+                    segment.add(symptomId(symptom), offset);
+                }
+                start = stop + 1;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void recordsWritten(List<RecordJournal.WrittenRecord> written) {
+        int start = 0;
+        while (start < written.size()) {
+            int segment = EncounterLog.segmentOf(written.get(start).position());
+            int end = start;
+            while (end < written.size() && EncounterLog.segmentOf(written.get(end).position()) == segment) {
+                end++;
+            }
+            index(segments.computeIfAbsent(segment, k -> new Segment(false)), written.subList(start, end));
+            start = end;
+        }
+    }
+
+    // Offsets changed wherever duplicates were dropped, so the segment is indexed again from
+    // its sealed file. That runs on the compactor thread; only the swap takes the lock, and
+    // until then queries keep reading the open file, which is deleted only after this returns.
+    @Override
+    public void segmentSealed(int segment, List<String> removed) {
+        try {
+            Segment sealed = buildSealed(segment);
+            synchronized (this) {
+                segments.put(segment, sealed);
+                FileChannel reader = readers.remove(segment);
+                if (reader != null) {
+                    reader.close();
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error indexing sealed segment " + segment + ": " + e.getMessage());
+        }
+    }
+
+    private synchronized void openSealed(int segment) throws IOException {
+        Segment sealed = mapSealed(segment);
+        segments.put(segment, sealed != null ? sealed : buildSealed(segment));
+    }
+
+    private Segment buildSealed(int segment) throws IOException {
+        Segment built = new Segment(true);
+        Path sealedFile = log.sealedFile(segment);
+        try (FileChannel records = FileChannel.open(sealedFile, StandardOpenOption.READ)) {
+            RecordJournal.replay(records, 0, written -> index(built, written));
+        }
+        writeSealed(segment, Files.size(sealedFile), built);
+        Segment mapped = mapSealed(segment);
+        return mapped != null ? mapped : built;
+    }
+
+    private void writeSealed(int segment, long sealedSize, Segment built) throws IOException {
+        List<byte[]> names = new ArrayList<>();
+        List<Postings> lists = new ArrayList<>();
+        long size = 4 + 4 + 8 + 4;
+        synchronized (this) {
+            for (Map.Entry<String, Integer> entry : symptomIds.entrySet()) {
+                int id = entry.getValue();
+                if (id < built.lists.length && built.lists[id] != null) {
+                    byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                    names.add(name);
+                    lists.add(built.lists[id]);
+                    size += 2 + name.length + 12 + built.lists[id].skipBytes() + built.lists[id].size;
+                }
+            }
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Postings too large for one file");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        buffer.putInt(MAGIC).putInt(VERSION).putLong(sealedSize).putInt(lists.size());
+        int directory = buffer.position();
+        int blob = directory;
+        for (byte[] name : names) {
+            blob += 2 + name.length + 12;
+        }
+        for (int i = 0; i < lists.size(); i++) {
+            Postings list = lists.get(i);
+            buffer.putShort((short) names.get(i).length).put(names.get(i))
+                    .putInt(list.count).putInt(blob).putInt(blob + list.skipBytes());
+            blob += list.skipBytes() + list.size;
+        }
+        for (Postings list : lists) {
+            buffer.put(list.skip, 0, list.skipBytes()).put(list.data, 0, list.size);
+        }
+
+        Path file = log.segmentPath(segment, SUFFIX);
+        Path temp = log.segmentPath(segment, SUFFIX + ".tmp");
+        Files.write(temp, buffer.array());
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Returns the segment's mapped postings, or null if the file is missing or stale
+    private Segment mapSealed(int segment) throws IOException {
+        MappedByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(log.segmentPath(segment, SUFFIX), StandardOpenOption.READ)) {
+            if (channel.size() < 20 || channel.size() > Integer.MAX_VALUE) {
+                return null;
+            }
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (mapped.getInt() != MAGIC || mapped.getInt() != VERSION
+                || mapped.getLong() != Files.size(log.sealedFile(segment))) {
+            return null;
+        }
+        Segment sealed = new Segment(true);
+        sealed.mapped = mapped;
+        int lists = mapped.getInt();
+        for (int i = 0; i < lists; i++) {
+            byte[] name = new byte[mapped.getShort() & 0xffff];
+            mapped.get(name);
+            int id = symptomId(new String(name, StandardCharsets.UTF_8));
+            if (id >= sealed.counts.length) {
+                int length = Math.max(id + 1, sealed.counts.length * 2);
+                sealed.counts = Arrays.copyOf(sealed.counts, length);
+                sealed.skipOffsets = Arrays.copyOf(sealed.skipOffsets, length);
+                sealed.dataOffsets = Arrays.copyOf(sealed.dataOffsets, length);
+            }
+            sealed.counts[id] = mapped.getInt();
+            sealed.skipOffsets[id] = mapped.getInt();
+            sealed.dataOffsets[id] = mapped.getInt();
+        }
+        return sealed;
+    }
+
+    // Encounters that recorded every symptom in `all` and, unless it is empty, at least one
+    // in `any`. Returns the count and up to `limit` records, oldest first.
+    public synchronized Cohort query(Collection<String> all, Collection<String> any, int limit) throws IOException {
+        if (all.isEmpty() && any.isEmpty()) {
+            throw new IllegalArgumentException("No symptoms given");
+        }
+        long start = System.nanoTime();
+        int[] required = ids(all);
+        int[] optional = ids(any);
+        long count = 0;
+        List<String> records = new ArrayList<>(Math.min(limit, 1024));
+        for (Map.Entry<Integer, Segment> entry : segments.entrySet()) {
+            Cursor matches = matches(entry.getValue(), required, optional);
+            for (; matches != null && matches.value() != Long.MAX_VALUE; matches.next()) {
+                if (records.size() < limit) {
+                    records.add(readRecord(entry.getKey(), entry.getValue(), matches.value()));
+                }
+                count++;
+            }
+        }
+        Metrics.COHORT_QUERY.recordSince(start);
+        return new Cohort(count, records);
+    }
+
+    // IDs of the given symptoms; -1 for a symptom no encounter has recorded
+    private int[] ids(Collection<String> symptoms) {
+        int[] ids = new int[symptoms.size()];
+        int i = 0;
+        for (String symptom : symptoms) {
+            Integer id = symptomIds.get(symptom.trim().toLowerCase());
+            ids[i++] = id == null ? -1 : id;
+        }
+        return ids;
+    }
+
+    // A cursor over one segment's matches, or null if there can be none
+    private static Cursor matches(Segment segment, int[] required, int[] optional) {
+        List<Cursor> cursors = new ArrayList<>(required.length + 1);
+        for (int symptom : required) {
+            Cursor cursor = symptom < 0 ? null : segment.cursor(symptom);
+            if (cursor == null) {
+                return null;
+            }
+            cursors.add(cursor);
+        }
+        if (optional.length > 0) {
+            List<Cursor> alternatives = new ArrayList<>(optional.length);
+            for (int symptom : optional) {
+                Cursor cursor = symptom < 0 ? null : segment.cursor(symptom);
+                if (cursor != null) {
+                    alternatives.add(cursor);
+                }
+            }
+            if (alternatives.isEmpty()) {
+                return null;
+            }
+            cursors.add(alternatives.size() == 1 ? alternatives.get(0) : new UnionCursor(alternatives));
+        }
+        if (cursors.size() == 1) {
+            return cursors.get(0);
+        }
+        // Rarest first, so the shortest list drives the intersection
+        cursors.sort((a, b) -> Long.compare(a.cost(), b.cost()));
+        return new IntersectionCursor(cursors.toArray(new Cursor[0]));
+    }
+
+    // Reads from the file the segment's postings were built from; the swap in segmentSealed
+    // closes a reader left open on the open file
+    private String readRecord(int segment, Segment postings, long offset) throws IOException {
+        FileChannel reader = readers.get(segment);
+        if (reader == null) {
+            Path file = postings.sealed ? log.sealedFile(segment) : log.openFile(segment);
+            reader = FileChannel.open(file, StandardOpenOption.READ);
+            readers.put(segment, reader);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        while (true) {
+            int read = reader.read(buffer, offset + buffer.position());
+            for (int i = 0; i < buffer.position(); i++) {
+                if (buffer.get(i) == '\n') {
+                    return new String(buffer.array(), 0, i, StandardCharsets.UTF_8).stripTrailing();
+                }
+            }
+            if (read < 0) {
+                return new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8).stripTrailing();
+            }
+            if (!buffer.hasRemaining()) {
+                buffer = ByteBuffer.allocate(buffer.capacity() * 2).put(buffer.flip());
+            }
+        }
+    }
+
+    // Bytes held by the postings, in memory or mapped
+    public synchronized long postingBytes() {
+        long bytes = 0;
+        for (Segment segment : segments.values()) {
+            if (segment.mapped != null) {
+                bytes += segment.mapped.capacity();
+                continue;
+            }
+            for (Postings list : segment.lists) {
+                if (list != null) {
+                    bytes += list.skipBytes() + list.size;
+                }
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (FileChannel reader : readers.values()) {
+            reader.close();
+        }
+        readers.clear();
+    }
+
+    private static int putVarint(byte[] out, int at, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out[at++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[at++] = (byte) value;
+        return at;
+    }
+
+    // Ascending positions; value() is Long.MAX_VALUE once exhausted
+    private interface Cursor {
+        long value();
+
+        void next();
+
+        // Moves to the first position at or after the target
+        void advance(long target);
+
+        // Upper bound on the number of positions, to order intersections
+        long cost();
+    }
+
+    private static final class ListCursor implements Cursor {
+        private final ByteBuffer skip;
+        private final int skipBase;
+        private final ByteBuffer data;
+        private final int dataBase;
+        private final int count;
+        private int index;
+        private int read;
+        private long value;
+
+        ListCursor(ByteBuffer skip, int skipBase, ByteBuffer data, int dataBase, int count) {
+            this.skip = skip;
+            this.skipBase = skipBase;
+            this.data = data;
+            this.dataBase = dataBase;
+            this.count = count;
+            seekBlock(0);
+        }
+
+        private void seekBlock(int block) {
+            index = block * BLOCK_SIZE;
+            int entry = skipBase + block * SKIP_ENTRY_BYTES;
+            value = skip.getLong(entry);
+            read = dataBase + skip.getInt(entry + 8);
+        }
+
+        @Override
+        public long value() {
+            return value;
+        }
+
+        @Override
+        public void next() {
+            if (++index >= count) {
+                value = Long.MAX_VALUE;
+            } else if (index % BLOCK_SIZE == 0) {
+                seekBlock(index / BLOCK_SIZE);
+            } else {
+                long delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data.get(read++);
+                    delta |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                value += delta;
+            }
+        }
+
+        @Override
+        public void advance(long target) {
+            if (value >= target) {
+                return;
+            }
+            // Jump to the last block starting at or before the target, if it is ahead
+            int low = index / BLOCK_SIZE + 1;
+            int high = (count - 1) / BLOCK_SIZE;
+            int found = -1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (skip.getLong(skipBase + middle * SKIP_ENTRY_BYTES) <= target) {
+                    found = middle;
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            if (found >= 0) {
+                seekBlock(found);
+            }
+            while (value < target) {
+                next();
+            }
+        }
+
+        @Override
+        public long cost() {
+            return count;
+        }
+    }
+
+    private static final class IntersectionCursor implements Cursor {
+        private final Cursor[] cursors;
+        private long value;
+
+        IntersectionCursor(Cursor[] cursors) {
+            this.cursors = cursors;
+            settle(cursors[0].value());
+        }
+
+        // Leapfrogs until every cursor agrees on a position at or after the candidate
+        private void settle(long candidate) {
+            int agreed = 0;
+            int i = 0;
+            while (candidate != Long.MAX_VALUE && agreed < cursors.length) {
+                cursors[i].advance(candidate);
+                if (cursors[i].value() == candidate) {
+                    agreed++;
+                } else {
+                    candidate = cursors[i].value();
+                    agreed = 1;
+                }
+                i = (i + 1) % cursors.length;
+            }
+            value = candidate;
+        }
+
+        @Override
+        public long value() {
+            return value;
+        }
+
+        @Override
+        public void next() {
+            if (value != Long.MAX_VALUE) {
+                cursors[0].advance(value + 1);
+                settle(cursors[0].value());
+            }
+        }
+
+        @Override
+        public void advance(long target) {
+            if (value < target) {
+                settle(target);
+            }
+        }
+
+        @Override
+        public long cost() {
+            return cursors[0].cost();
+        }
+    }
+
+    private static final class UnionCursor implements Cursor {
+        private final List<Cursor> cursors;
+        private long value;
+
+        UnionCursor(List<Cursor> cursors) {
+            this.cursors = cursors;
+            settle();
+        }
+
+        private void settle() {
+            long min = Long.MAX_VALUE;
+            for (Cursor cursor : cursors) {
+                min = Math.min(min, cursor.value());
+            }
+            value = min;
+        }
+
+        @Override
+        public long value() {
+            return value;
+        }
+
+        @Override
+        public void next() {
+            if (value != Long.MAX_VALUE) {
+                advance(value + 1);
+            }
+        }
+
+        @Override
+        public void advance(long target) {
+            for (Cursor cursor : cursors) {
+                cursor.advance(target);
+            }
+            settle();
+        }
+
+        @Override
+        public long cost() {
+            long cost = 0;
+            for (Cursor cursor : cursors) {
+                cost += cursor.cost();
+            }
+            return cost;
+        }
+    }
+}
@@ -0,0 +1,316 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+// Streaming parser for medicalDatabase.csv. Reads through a reused buffer, finds the
+// '|' and ',' delimiters by scanning bytes, and interns each trimmed, lowercased token
+// straight into the symptom/disease maps, so a row costs no String allocation once its
+// tokens have been seen. Accepts exactly the rows MedicalDataBase.loadDatabase used to.
+final class DatabaseFileParser {
+    // Shared by parallel parses and by KnowledgeBaseManager's concurrent file loads; the
+    // workers are daemon threads and exit when idle
+    static final ForkJoinPool LOAD_POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final long MIN_RANGE_BYTES = 8L << 20;
+
+    private final TokenInterner interner = new TokenInterner();
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    private String[] lineSymptoms = new String[16];
+
+    public void parse(Path file, Map<String, Set<String>> symptomToDiseases,
+                      Map<String, Set<String>> diseaseToSymptoms) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            parse(channel, 0, Long.MAX_VALUE, symptomToDiseases, diseaseToSymptoms);
+        }
+    }
+
+    // Splits the file into line-aligned byte ranges, parses each on a LOAD_POOL worker into
+    // its own partial maps and merges the partials pairwise on the way back up. Small files,
+    // and single-core machines, are parsed on the calling thread.
+    public static void parseParallel(Path file, Map<String, Set<String>> symptomToDiseases,
+                                     Map<String, Set<String>> diseaseToSymptoms) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            int parallelism = LOAD_POOL.getParallelism();
+            int ranges = parallelism < 2 ? 1 : (int) Math.min(parallelism * 4L, size / MIN_RANGE_BYTES);
+            if (ranges < 2) {
+                new DatabaseFileParser().parse(channel, 0, Long.MAX_VALUE, symptomToDiseases, diseaseToSymptoms);
+                return;
+            }
+            long[] bounds = new long[ranges + 1];
+            for (int i = 0; i <= ranges; i++) {
+                bounds[i] = size * i / ranges;
+            }
+            // Anything appended while loading is picked up, as by the sequential parse
+            bounds[ranges] = Long.MAX_VALUE;
+            Partial merged;
+            try {
+                merged = LOAD_POOL.invoke(new RangeTask(channel, bounds, 0, ranges));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            merged.mergeInto(symptomToDiseases, diseaseToSymptoms);
+        }
+    }
+
+    // Postings parsed from one or more ranges
+    private record Partial(Map<String, Set<String>> symptomToDiseases, Map<String, Set<String>> diseaseToSymptoms) {
+        void mergeInto(Map<String, Set<String>> symptoms, Map<String, Set<String>> diseases) {
+            merge(symptomToDiseases, symptoms);
+            merge(diseaseToSymptoms, diseases);
+        }
+
+        private static void merge(Map<String, Set<String>> from, Map<String, Set<String>> into) {
+            for (Map.Entry<String, Set<String>> entry : from.entrySet()) {
+                into.merge(entry.getKey(), entry.getValue(), (a, b) -> {
+                    a.addAll(b);
+                    return a;
+                });
+            }
+        }
+    }
+
+    private static final class RangeTask extends RecursiveTask<Partial> {
+        private static final long serialVersionUID = 1L;
+        private final transient FileChannel channel;
+        private final long[] bounds;
+        private final int first;
+        private final int last;
+
+        RangeTask(FileChannel channel, long[] bounds, int first, int last) {
+            this.channel = channel;
+            this.bounds = bounds;
+            this.first = first;
+            this.last = last;
+        }
+
+        @Override
+        protected Partial compute() {
+            if (last - first == 1) {
+                Partial partial = new Partial(new HashMap<>(), new HashMap<>());
+                try {
+                    new DatabaseFileParser().parse(channel, bounds[first], bounds[last],
+                            partial.symptomToDiseases(), partial.diseaseToSymptoms());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return partial;
+            }
+            int middle = (first + last) >>> 1;
+            RangeTask left = new RangeTask(channel, bounds, first, middle);
+            left.fork();
+            Partial right = new RangeTask(channel, bounds, middle, last).compute();
+            Partial merged = left.join();
+            // Fold the smaller side into the larger one
+            if (merged.symptomToDiseases().size() < right.symptomToDiseases().size()) {
+                Partial swap = merged;
+                merged = right;
+                right = swap;
+            }
+            right.mergeInto(merged.symptomToDiseases(), merged.diseaseToSymptoms());
+            return merged;
+        }
+    }
+
+    // Parses the lines that start in [from, to). A range that begins mid-line leaves that line
+    // to the range before it, and the last line is read past `to` to its end. The line at
+    // offset 0 is the header.
+    private void parse(FileChannel channel, long from, long to, Map<String, Set<String>> symptomToDiseases,
+                       Map<String, Set<String>> diseaseToSymptoms) throws IOException {
+        long base = from; // File position of buffer[0]
+        long readPosition = from;
+        int start = 0;
+        int scan = 0;
+        int end = 0;
+        boolean skip = from == 0 || !startsLine(channel, from);
+        boolean eof = false;
+        while (true) {
+            int newline = indexOf(buffer, scan, end, (byte) '\n');
+            if (newline < 0) {
+                if (eof) {
+                    if (start < end && !skip && base + start < to) {
+                        parseLine(buffer, start, end, symptomToDiseases, diseaseToSymptoms);
+                    }
+                    return;
+                }
+                // Move the partial line to the front and refill behind it
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                base += start;
+                end -= start;
+                scan = end;
+                start = 0;
+                if (end == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                int read = channel.read(ByteBuffer.wrap(buffer, end, buffer.length - end), readPosition);
+                if (read < 0) {
+                    eof = true;
+                } else {
+                    end += read;
+                    readPosition += read;
+                }
+                continue;
+            }
+            if (base + start >= to) {
+                return;
+            }
+            if (skip) {
+                skip = false; // Header, or the end of the previous range's last line
+            } else {
+                parseLine(buffer, start, newline, symptomToDiseases, diseaseToSymptoms);
+            }
+            start = newline + 1;
+            scan = start;
+        }
+    }
+
+    private static boolean startsLine(FileChannel channel, long position) throws IOException {
+        ByteBuffer previous = ByteBuffer.allocate(1);
+        return channel.read(previous, position - 1) == 1 && previous.get(0) == '\n';
+    }
+
+    private void parseLine(byte[] line, int from, int to, Map<String, Set<String>> symptomToDiseases,
+                           Map<String, Set<String>> diseaseToSymptoms) {
+        if (to > from && line[to - 1] == '\r') {
+            to--;
+        }
+        int firstPipe = indexOf(line, from, to, (byte) '|');
+        int secondPipe = firstPipe < 0 ? -1 : indexOf(line, firstPipe + 1, to, (byte) '|');
+        int thirdPipe = secondPipe < 0 ? -1 : indexOf(line, secondPipe + 1, to, (byte) '|');
+        // String.split drops trailing empty fields, so a row only counted as having
+        // four columns when something other than '|' follows the third pipe
+        if (thirdPipe < 0 || !hasContent(line, thirdPipe + 1, to)) {
+            return;
+        }
+        int diseaseEnd = indexOf(line, thirdPipe + 1, to, (byte) '|');
+        String disease = interner.intern(line, thirdPipe + 1, diseaseEnd < 0 ? to : diseaseEnd);
+
+        int count = 0;
+        int tokenStart = secondPipe + 1;
+        while (tokenStart <= thirdPipe) {
+            int comma = indexOf(line, tokenStart, thirdPipe, (byte) ',');
+            int tokenEnd = comma < 0 ? thirdPipe : comma;
+            String symptom = interner.intern(line, tokenStart, tokenEnd);
+            if (!symptom.isEmpty()) {
+                if (count == lineSymptoms.length) {
+                    lineSymptoms = Arrays.copyOf(lineSymptoms, count * 2);
+                }
+                lineSymptoms[count++] = symptom;
+            }
+            tokenStart = tokenEnd + 1;
+        }
+
+        Set<String> symptoms = count == 0 ? null : diseaseToSymptoms.computeIfAbsent(disease, k -> new HashSet<>());
+        for (int i = 0; i < count; i++) {
+            symptomToDiseases.computeIfAbsent(lineSymptoms[i], k -> new HashSet<>()).add(disease);
+            symptoms.add(lineSymptoms[i]);
+        }
+    }
+
+    private static boolean hasContent(byte[] line, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (line[i] != '|') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int indexOf(byte[] bytes, int from, int to, byte target) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == target) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Open-addressing table from trimmed, lowercased byte ranges to shared Strings.
+    // A lookup hashes and compares bytes in place; a String is only created for new tokens.
+    private static final class TokenInterner {
+        private byte[][] keys = new byte[1024][];
+        private String[] values = new String[1024];
+        private int size;
+        private byte[] scratch = new byte[64];
+        // Tokens with non-ASCII bytes go through String.toLowerCase like the old loader
+        private final Map<String, String> nonAscii = new HashMap<>();
+
+        String intern(byte[] bytes, int from, int to) {
+            while (from < to && (bytes[from] & 0xff) <= ' ') {
+                from++;
+            }
+            while (to > from && (bytes[to - 1] & 0xff) <= ' ') {
+                to--;
+            }
+            int length = to - from;
+            if (scratch.length < length) {
+                scratch = new byte[Math.max(length, scratch.length * 2)];
+            }
+            int hash = 0;
+            for (int i = 0; i < length; i++) {
+                byte b = bytes[from + i];
+                if (b < 0) {
+                    String token = new String(bytes, from, length, StandardCharsets.UTF_8).toLowerCase();
+                    return nonAscii.computeIfAbsent(token, t -> t);
+                }
+                if (b >= 'A' && b <= 'Z') {
+                    b += 'a' - 'A';
+                }
+                scratch[i] = b;
+                hash = 31 * hash + b;
+            }
+
+            int mask = keys.length - 1;
+            int slot = mix(hash) & mask;
+            while (keys[slot] != null) {
+                if (Arrays.equals(keys[slot], 0, keys[slot].length, scratch, 0, length)) {
+                    return values[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+            byte[] key = Arrays.copyOf(scratch, length);
+            String value = new String(key, StandardCharsets.US_ASCII);
+            keys[slot] = key;
+            values[slot] = value;
+            if (++size * 2 > keys.length) {
+                grow();
+            }
+            return value;
+        }
+
+        private static int mix(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+
+        private void grow() {
+            byte[][] oldKeys = keys;
+            String[] oldValues = values;
+            keys = new byte[oldKeys.length * 2][];
+            values = new String[oldValues.length * 2];
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] == null) {
+                    continue;
+                }
+                // For ASCII tokens String.hashCode() matches the byte hash computed in intern()
+                int slot = mix(oldValues[i].hashCode()) & mask;
+                while (keys[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,142 @@
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Bounded LRU cache of exact diagnoses, keyed by the sorted, de-duplicated symptom IDs.
+// Each KnowledgeBase owns one, so a reload starts with an empty cache; the counters are
+// process-wide so they survive reloads. Split into independently locked segments to
+// keep contention low under many concurrent sessions.
+final class DiagnosisCache {
+    static final int DEFAULT_CAPACITY = 10_000;
+    private static final int SEGMENTS = 16;
+
+    private static final LongAdder HITS = new LongAdder();
+    private static final LongAdder MISSES = new LongAdder();
+    private static final LongAdder EVICTIONS = new LongAdder();
+    private static final LongAdder INVALIDATIONS = new LongAdder();
+
+    // Canonical symptom set: sorted and de-duplicated so any selection order hits the same entry
+    static final class Key {
+        private final int[] ids;
+        private final int hash;
+
+        Key(int[] symptomIds) {
+            int[] sorted = symptomIds.clone();
+            Arrays.sort(sorted);
+            int unique = 0;
+            for (int i = 0; i < sorted.length; i++) {
+                if (i == 0 || sorted[i] != sorted[i - 1]) {
+                    sorted[unique++] = sorted[i];
+                }
+            }
+            this.ids = unique == sorted.length ? sorted : Arrays.copyOf(sorted, unique);
+            this.hash = Arrays.hashCode(ids);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key key && hash == key.hash && Arrays.equals(ids, key.ids);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Segment extends LinkedHashMap<Key, String[]> {
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+
+        Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, String[]> eldest) {
+            if (size() > capacity) {
+                EVICTIONS.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    DiagnosisCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    DiagnosisCache(int capacity) {
+        int perSegment = Math.max(1, capacity / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(perSegment);
+        }
+    }
+
+    private Segment segmentFor(Key key) {
+        int hash = key.hashCode();
+        return segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    // Returns a copy of the cached diagnosis, or null on a miss
+    public String[] get(Key key) {
+        Segment segment = segmentFor(key);
+        String[] cached;
+        synchronized (segment) {
+            cached = segment.get(key);
+        }
+        if (cached == null) {
+            MISSES.increment();
+            return null;
+        }
+        HITS.increment();
+        return cached.clone();
+    }
+
+    public void put(Key key, String[] diagnoses) {
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.put(key, diagnoses.clone());
+        }
+    }
+
+    // Called when the owning KnowledgeBase is replaced
+    public void invalidate() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+        INVALIDATIONS.increment();
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public static long hitCount() {
+        return HITS.sum();
+    }
+
+    public static long missCount() {
+        return MISSES.sum();
+    }
+
+    public static long evictionCount() {
+        return EVICTIONS.sum();
+    }
+
+    public static long invalidationCount() {
+        return INVALIDATIONS.sum();
+    }
+}
@@ -0,0 +1,354 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Diagnosis over dense int IDs. Every symptom and disease gets an ID at load time
+// (in sorted name order) and each symptom's diseases are kept as sorted CSR postings
+// plus a long[] bitset, so a diagnosis is a word-wise AND with no allocation beyond
+// the result array. Bitsets are built from the postings the first time a symptom is
+// queried, which keeps loading from a KnowledgeSnapshot cheap.
+final class DiagnosisEngine {
+    private final Map<String, Integer> symptomIds;
+    private final String[] symptomNames;
+    private final String[] diseaseNames;
+    private final AtomicReferenceArray<long[]> symptomToDiseases;
+    // First linked disease missing from disease.txt, per symptom, so diagnosis can report it
+    private final String[] unrecognizedDisease;
+    private final int words;
+    // Inverted index: disease IDs of symptom s are postingIds[postingOffsets[s] .. postingOffsets[s + 1])
+    private final int[] postingOffsets;
+    private final int[] postingIds;
+    private final int[] diseaseSymptomCounts;
+    private final boolean[] recognizedDiseases;
+    // Zeroed per-disease match counters for rankedDiagnosis, borrowed for one call and handed
+    // back. A ThreadLocal would allocate a fresh array on every virtual thread the service starts;
+    // the calls never block, so about one array per core is ever in use at once.
+    private final BlockingQueue<int[]> matchScratch =
+            new ArrayBlockingQueue<>(Runtime.getRuntime().availableProcessors());
+
+    DiagnosisEngine(String[] symptomNames, String[] diseaseNames, boolean[] recognizedDiseases,
+                    int[] postingOffsets, int[] postingIds) {
+        this.symptomNames = symptomNames;
+        this.diseaseNames = diseaseNames;
+        this.recognizedDiseases = recognizedDiseases;
+        this.postingOffsets = postingOffsets;
+        this.postingIds = postingIds;
+        this.symptomIds = new HashMap<>(symptomNames.length * 2);
+        for (int i = 0; i < symptomNames.length; i++) {
+            symptomIds.put(symptomNames[i], i);
+        }
+
+        this.words = (diseaseNames.length + 63) >>> 6;
+        this.symptomToDiseases = new AtomicReferenceArray<>(symptomNames.length);
+        this.unrecognizedDisease = new String[symptomNames.length];
+        this.diseaseSymptomCounts = new int[diseaseNames.length];
+        for (int s = 0; s < symptomNames.length; s++) {
+            for (int i = postingOffsets[s]; i < postingOffsets[s + 1]; i++) {
+                int d = postingIds[i];
+                diseaseSymptomCounts[d]++;
+                if (unrecognizedDisease[s] == null && !recognizedDiseases[d]) {
+                    unrecognizedDisease[s] = diseaseNames[d];
+                }
+            }
+        }
+    }
+
+    static DiagnosisEngine fromMaps(Set<String> validSymptoms, Set<String> validDiseases,
+                                    Map<String, Set<String>> symptomToDiseases) {
+        TreeSet<String> symptoms = new TreeSet<>(validSymptoms);
+        symptoms.addAll(symptomToDiseases.keySet());
+        TreeSet<String> diseases = new TreeSet<>(validDiseases);
+        for (Set<String> linked : symptomToDiseases.values()) {
+            diseases.addAll(linked);
+        }
+
+        String[] symptomNames = symptoms.toArray(new String[0]);
+        String[] diseaseNames = diseases.toArray(new String[0]);
+        Map<String, Integer> diseaseIds = new HashMap<>(diseaseNames.length * 2);
+        boolean[] recognizedDiseases = new boolean[diseaseNames.length];
+        for (int i = 0; i < diseaseNames.length; i++) {
+            diseaseIds.put(diseaseNames[i], i);
+            recognizedDiseases[i] = validDiseases.contains(diseaseNames[i]);
+        }
+
+        int[] postingOffsets = new int[symptomNames.length + 1];
+        for (int s = 0; s < symptomNames.length; s++) {
+            Set<String> linked = symptomToDiseases.get(symptomNames[s]);
+            postingOffsets[s + 1] = postingOffsets[s] + (linked == null ? 0 : linked.size());
+        }
+        int[] postingIds = new int[postingOffsets[symptomNames.length]];
+        for (int s = 0; s < symptomNames.length; s++) {
+            Set<String> linked = symptomToDiseases.get(symptomNames[s]);
+            if (linked == null) {
+                continue;
+            }
+            int next = postingOffsets[s];
+            for (String disease : linked) {
+                postingIds[next++] = diseaseIds.get(disease);
+            }
+            Arrays.sort(postingIds, postingOffsets[s], next);
+        }
+        return new DiagnosisEngine(symptomNames, diseaseNames, recognizedDiseases, postingOffsets, postingIds);
+    }
+
+    // Returns the symptom's ID, or -1 if it is not part of the knowledge base
+    public int symptomId(String normalizedSymptom) {
+        Integer id = symptomIds.get(normalizedSymptom);
+        return id == null ? -1 : id;
+    }
+
+    public int[] symptomIds(List<String> normalizedSymptoms) {
+        int[] ids = new int[normalizedSymptoms.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = symptomId(normalizedSymptoms.get(i));
+        }
+        return ids;
+    }
+
+    public String[] diagnosis(List<String> normalizedSymptoms) throws UnrecognizedDiseaseException {
+        return diagnosis(symptomIds(normalizedSymptoms));
+    }
+
+    // Diseases linked to every given symptom; unknown IDs (-1) have no diseases
+    public String[] diagnosis(int[] ids) throws UnrecognizedDiseaseException {
+        if (ids.length == 0) {
+            return new String[0];
+        }
+        for (int id : ids) {
+            if (id < 0) {
+                return new String[0];
+            }
+            if (unrecognizedDisease[id] != null) {
+                throw new UnrecognizedDiseaseException("Disease '" + unrecognizedDisease[id] + "' not recognized");
+            }
+        }
+
+        // First pass sizes the result, second pass fills it
+        int count = 0;
+        for (int w = 0; w < words; w++) {
+            count += Long.bitCount(intersectWord(ids, w));
+        }
+        String[] result = new String[count];
+        int next = 0;
+        for (int w = 0; w < words && next < count; w++) {
+            long word = intersectWord(ids, w);
+            while (word != 0) {
+                result[next++] = diseaseNames[(w << 6) + Long.numberOfTrailingZeros(word)];
+                word &= word - 1;
+            }
+        }
+        return result;
+    }
+
+    private long intersectWord(int[] ids, int w) {
+        long word = bitset(ids[0])[w];
+        for (int i = 1; i < ids.length && word != 0; i++) {
+            word &= bitset(ids[i])[w];
+        }
+        return word;
+    }
+
+    private long[] bitset(int symptom) {
+        long[] bits = symptomToDiseases.get(symptom);
+        if (bits == null) {
+            // Racing threads build identical bitsets, so whichever lands first is kept
+            bits = new long[words];
+            for (int i = postingOffsets[symptom]; i < postingOffsets[symptom + 1]; i++) {
+                int d = postingIds[i];
+                bits[d >>> 6] |= 1L << d;
+            }
+            if (!symptomToDiseases.compareAndSet(symptom, null, bits)) {
+                bits = symptomToDiseases.get(symptom);
+            }
+        }
+        return bits;
+    }
+
+    public ScoredDiagnosis[] rankedDiagnosis(List<String> normalizedSymptoms, int k) {
+        return rankedDiagnosis(symptomIds(normalizedSymptoms), k);
+    }
+
+    // Top-k diseases by Jaccard overlap with the given symptoms, best first.
+    // Only the postings of the selected symptoms are walked; diseases missing
+    // from disease.txt are skipped rather than reported.
+    public ScoredDiagnosis[] rankedDiagnosis(int[] ids, int k) {
+        int selected = 0;
+        int touchedCount = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] < 0 || isDuplicate(ids, i)) {
+                continue;
+            }
+            selected++;
+            touchedCount += postingOffsets[ids[i] + 1] - postingOffsets[ids[i]];
+        }
+        if (selected == 0 || k <= 0) {
+            return new ScoredDiagnosis[0];
+        }
+
+        int[] matches = matchScratch.poll();
+        if (matches == null) {
+            matches = new int[diseaseNames.length];
+        }
+        int[] touched = new int[touchedCount];
+        int distinct = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] < 0 || isDuplicate(ids, i)) {
+                continue;
+            }
+            for (int p = postingOffsets[ids[i]]; p < postingOffsets[ids[i] + 1]; p++) {
+                int d = postingIds[p];
+                if (matches[d]++ == 0) {
+                    touched[distinct++] = d;
+                }
+            }
+        }
+
+        // Bounded min-heap of the best k candidates seen so far
+        int[] heap = new int[Math.min(k, distinct)];
+        int[] heapMatched = new int[heap.length];
+        double[] heapScores = new double[heap.length];
+        int size = 0;
+        for (int i = 0; i < distinct; i++) {
+            int d = touched[i];
+            int matched = matches[d];
+            matches[d] = 0;
+            if (!recognizedDiseases[d]) {
+                continue;
+            }
+            double score = (double) matched / (selected + diseaseSymptomCounts[d] - matched);
+            if (size < heap.length) {
+                heap[size] = d;
+                heapMatched[size] = matched;
+                heapScores[size] = score;
+                siftUp(heap, heapMatched, heapScores, size++);
+            } else if (better(score, d, heapScores[0], heap[0])) {
+                heap[0] = d;
+                heapMatched[0] = matched;
+                heapScores[0] = score;
+                siftDown(heap, heapMatched, heapScores, size);
+            }
+        }
+
+        // Every counter the call touched is zero again; dropped if the pool is full
+        matchScratch.offer(matches);
+
+        ScoredDiagnosis[] result = new ScoredDiagnosis[size];
+        for (int i = size - 1; i >= 0; i--) {
+            int d = heap[0];
+            result[i] = new ScoredDiagnosis(diseaseNames[d], heapMatched[0], diseaseSymptomCounts[d], heapScores[0]);
+            swap(heap, heapMatched, heapScores, 0, i);
+            siftDown(heap, heapMatched, heapScores, i);
+        }
+        return result;
+    }
+
+    private static boolean isDuplicate(int[] ids, int index) {
+        for (int i = 0; i < index; i++) {
+            if (ids[i] == ids[index]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Higher score wins; ties go to the lower (alphabetically earlier) disease ID. The heap
+    // helpers are shared with LiveDiagnosis.
+    static boolean better(double score, int disease, double otherScore, int otherDisease) {
+        return score > otherScore || (score == otherScore && disease < otherDisease);
+    }
+
+    static void siftUp(int[] heap, int[] matched, double[] scores, int index) {
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (!better(scores[parent], heap[parent], scores[index], heap[index])) {
+                break;
+            }
+            swap(heap, matched, scores, parent, index);
+            index = parent;
+        }
+    }
+
+    static void siftDown(int[] heap, int[] matched, double[] scores, int size) {
+        int index = 0;
+        while (true) {
+            int worst = index;
+            int left = 2 * index + 1;
+            int right = left + 1;
+            if (left < size && better(scores[worst], heap[worst], scores[left], heap[left])) {
+                worst = left;
+            }
+            if (right < size && better(scores[worst], heap[worst], scores[right], heap[right])) {
+                worst = right;
+            }
+            if (worst == index) {
+                return;
+            }
+            swap(heap, matched, scores, index, worst);
+            index = worst;
+        }
+    }
+
+    static void swap(int[] heap, int[] matched, double[] scores, int a, int b) {
+        int id = heap[a];
+        heap[a] = heap[b];
+        heap[b] = id;
+        int count = matched[a];
+        matched[a] = matched[b];
+        matched[b] = count;
+        double score = scores[a];
+        scores[a] = scores[b];
+        scores[b] = score;
+    }
+
+    public String symptomName(int id) {
+        return symptomNames[id];
+    }
+
+    public String diseaseName(int id) {
+        return diseaseNames[id];
+    }
+
+    public boolean isRecognizedDisease(int id) {
+        return recognizedDiseases[id];
+    }
+
+    public int diseaseSymptomCount(int id) {
+        return diseaseSymptomCounts[id];
+    }
+
+    // First linked disease missing from disease.txt, or null
+    String unrecognizedDisease(int symptom) {
+        return unrecognizedDisease[symptom];
+    }
+
+    // Raw arrays for KnowledgeSnapshot; callers must not modify them
+    String[] symptomNames() {
+        return symptomNames;
+    }
+
+    String[] diseaseNames() {
+        return diseaseNames;
+    }
+
+    int[] postingOffsets() {
+        return postingOffsets;
+    }
+
+    int[] postingIds() {
+        return postingIds;
+    }
+
+    public int symptomCount() {
+        return symptomNames.length;
+    }
+
+    public int diseaseCount() {
+        return diseaseNames.length;
+    }
+}
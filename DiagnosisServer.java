@@ -0,0 +1,456 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Embedded HTTP/JSON service for kiosks and EHR integrations, one virtual thread per request.
+// Every request reads the same shared KnowledgeBase snapshot; saves go through one RecordJournal.
+//
+//   GET  /symptoms                 {"symptoms":[...]}
+//   GET  /symptoms?prefix=fe&offset=0&limit=20   {"total":..,"symptoms":[...]}  (typeahead page)
+//   GET  /symptoms/resolve?q=feaver    {"input":..,"symptom":"fever","suggestions":[...]}
+//                                  (symptom is null when the input is unknown or ambiguous)
+//   GET  /diseases                 {"diseases":[...]}
+//   POST /diagnose                 {"symptoms":[...]} -> {"diseases":[...],"closest":[...]}
+//                                  (symptoms here and below may be synonyms or near misspellings)
+//   POST /encounters               {"patientId":..,"patientName":..,"symptoms":[...]} -> 201 {"diseases":[...]}
+//                                  (saved to the EncounterLog)
+//   GET  /encounters/cohort?all=fever,rash&any=cough&limit=20   {"count":..,"encounters":[...]}
+//                                  (saved encounters with every `all` symptom and one `any` symptom)
+//   GET  /analytics?days=7&limit=10    top diseases and symptoms over the window, daily volume
+//                                  (records without a recorded-at time count only as "undated")
+//   GET  /analytics/symptoms?disease=malaria (or ?symptom=fever)&limit=10   co-occurring symptoms
+//   GET  /metrics                  plain-text Metrics dump
+final class DiagnosisServer implements AutoCloseable {
+    static final int DEFAULT_PORT = 8080;
+    private static final int MAX_BODY_BYTES = 64 * 1024;
+    private static final int CLOSEST_MATCHES = 5;
+    private static final int DEFAULT_ANALYTICS_DAYS = 7;
+    private static final int DEFAULT_ANALYTICS_LIMIT = 10;
+    private static final int SUGGESTIONS = 5;
+    private static final int DEFAULT_PAGE_SIZE = 20;
+
+    // A client error: bad JSON, missing fields or an unrecognized symptom
+    private static final class BadRequestException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        BadRequestException(String message) {
+            super(message);
+        }
+    }
+
+    private record Response(int status, byte[] body) {}
+
+    // Vocabulary responses are rebuilt only when the snapshot changes
+    private record Vocabulary(KnowledgeBase source, byte[] symptoms, byte[] diseases) {}
+
+    private final KnowledgeBaseManager knowledgeBase;
+    private final RecordJournal journal;
+    private final EncounterAnalytics analytics;
+    private final CohortIndex cohorts;
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private volatile Vocabulary vocabulary;
+
+    DiagnosisServer(KnowledgeBaseManager knowledgeBase, RecordJournal journal, EncounterAnalytics analytics,
+                    CohortIndex cohorts, int port) throws IOException {
+        this.knowledgeBase = knowledgeBase;
+        this.journal = journal;
+        this.analytics = analytics;
+        this.cohorts = cohorts;
+        this.server = HttpServer.create(new InetSocketAddress(port), 1024);
+        server.setExecutor(executor);
+        server.createContext("/symptoms", get(this::symptoms));
+        server.createContext("/symptoms/resolve", get(this::resolveSymptom));
+        server.createContext("/diseases", get(exchange -> new Response(200, vocabulary().diseases())));
+        server.createContext("/diagnose", post(this::diagnose));
+        server.createContext("/encounters", post(this::saveEncounter));
+        server.createContext("/encounters/cohort", get(this::cohort));
+        server.createContext("/analytics", get(this::analytics));
+        server.createContext("/analytics/symptoms", get(this::associatedSymptoms));
+        server.createContext("/metrics", exchange -> {
+            byte[] body = Metrics.dump().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            send(exchange, 200, body);
+        });
+    }
+
+    // Usage: java MedicalAssistant --serve [port]
+    static int runFromCommandLine(String[] args) {
+        int port = DEFAULT_PORT;
+        if (args.length > 1) {
+            try {
+                port = Integer.parseInt(args[1]);
+            } catch (NumberFormatException e) {
+                System.err.println("Usage: java MedicalAssistant --serve [port]");
+                return 2;
+            }
+        }
+        KnowledgeBaseManager manager = new KnowledgeBaseManager();
+        String loadError = manager.load();
+        if (loadError != null) {
+            System.err.println(loadError);
+            return 1;
+        }
+        try {
+            RecordJournal journal = RecordJournal.shared();
+            EncounterAnalytics analytics = journal.attach(EncounterAnalytics::new);
+            CohortIndex cohorts = journal.attach(CohortIndex::new);
+            DiagnosisServer server = new DiagnosisServer(manager, journal, analytics, cohorts, port);
+            Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+            server.start();
+            System.out.println("Medical Assistant service listening on port " + port);
+            return 0;
+        } catch (IOException e) {
+            System.err.println("Error starting service: " + e.getMessage());
+            return 1;
+        }
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    @Override
+    public void close() {
+        server.stop(1);
+        executor.shutdown();
+        try {
+            journal.close();
+        } catch (IOException e) {
+            System.err.println("Error closing the encounter log: " + e.getMessage());
+        }
+        try {
+            analytics.close();
+        } catch (IOException e) {
+            System.err.println("Error writing " + EncounterAnalytics.STATS_FILE + ": " + e.getMessage());
+        }
+        try {
+            cohorts.close();
+        } catch (IOException e) {
+            System.err.println("Error closing the cohort index: " + e.getMessage());
+        }
+    }
+
+    private interface Handler {
+        Response handle(HttpExchange exchange) throws IOException, BadRequestException;
+    }
+
+    private static HttpHandler get(Handler handler) {
+        return exchange -> respond(exchange, "GET", handler);
+    }
+
+    private static HttpHandler post(Handler handler) {
+        return exchange -> respond(exchange, "POST", handler);
+    }
+
+    private static void respond(HttpExchange exchange, String method, Handler handler) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals(method)) {
+                exchange.getResponseHeaders().set("Allow", method);
+                sendJson(exchange, 405, error("Use " + method));
+                return;
+            }
+            Response response;
+            try {
+                response = handler.handle(exchange);
+            } catch (BadRequestException e) {
+                sendJson(exchange, 400, error(e.getMessage()));
+                return;
+            } catch (IOException | RuntimeException e) {
+                sendJson(exchange, 500, error(e.getMessage()));
+                return;
+            }
+            sendJson(exchange, response.status(), response.body());
+        }
+    }
+
+    private Vocabulary vocabulary() {
+        KnowledgeBase kb = knowledgeBase.current();
+        Vocabulary cached = vocabulary;
+        if (cached == null || cached.source() != kb) {
+            StringBuilder symptoms = Json.array(new StringBuilder("{\"symptoms\":"), new TreeSet<>(kb.getValidSymptoms()));
+            StringBuilder diseases = Json.array(new StringBuilder("{\"diseases\":"), new TreeSet<>(kb.getValidDiseases()));
+            cached = new Vocabulary(kb, symptoms.append('}').toString().getBytes(StandardCharsets.UTF_8),
+                    diseases.append('}').toString().getBytes(StandardCharsets.UTF_8));
+            vocabulary = cached;
+        }
+        return cached;
+    }
+
+    private Response symptoms(HttpExchange exchange) throws BadRequestException {
+        Map<String, String> query = query(exchange);
+        String prefix = query.get("prefix");
+        if (prefix == null) {
+            return new Response(200, vocabulary().symptoms());
+        }
+        int offset = intParameter(query, "offset", 0);
+        int limit = intParameter(query, "limit", DEFAULT_PAGE_SIZE);
+        SymptomPrefixIndex index = knowledgeBase.current().getPrefixIndex();
+        String normalized = SymptomPrefixIndex.normalize(prefix);
+        int from = index.from(normalized);
+        int to = index.to(normalized);
+        List<String> page = new ArrayList<>();
+        for (int i = from + offset; i < to && page.size() < limit; i++) {
+            page.add(index.name(i));
+        }
+        StringBuilder out = new StringBuilder("{\"total\":").append(to - from).append(",\"symptoms\":");
+        return new Response(200, Json.array(out, page).append('}').toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Response resolveSymptom(HttpExchange exchange) throws BadRequestException {
+        String input = query(exchange).get("q");
+        if (input == null || input.isBlank()) {
+            throw new BadRequestException("'q' is required");
+        }
+        SymptomResolver resolver = knowledgeBase.current().getResolver();
+        String symptom = resolver.resolve(input);
+        StringBuilder out = Json.quote(new StringBuilder("{\"input\":"), input).append(",\"symptom\":");
+        if (symptom == null) {
+            out.append("null");
+        } else {
+            Json.quote(out, symptom);
+        }
+        Json.array(out.append(",\"suggestions\":"), resolver.suggestions(input, SUGGESTIONS));
+        return new Response(200, out.append('}').toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Response diagnose(HttpExchange exchange) throws IOException, BadRequestException {
+        Map<String, Object> request = readJson(exchange);
+        PatientSession session = newSession(request, "", "");
+        StringBuilder out = new StringBuilder("{\"diseases\":");
+        String[] diagnoses = diagnosis(session);
+        Json.array(out, List.of(diagnoses));
+        if (diagnoses.length == 0) {
+            out.append(",\"closest\":[");
+            ScoredDiagnosis[] closest = session.rankedDiagnosis(CLOSEST_MATCHES);
+            for (int i = 0; i < closest.length; i++) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                out.append("{\"disease\":");
+                Json.quote(out, closest[i].disease());
+                out.append(",\"matched\":").append(closest[i].matchedSymptoms())
+                        .append(",\"total\":").append(closest[i].totalSymptoms())
+                        .append(",\"score\":").append(closest[i].score()).append('}');
+            }
+            out.append(']');
+        }
+        return new Response(200, out.append('}').toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Response saveEncounter(HttpExchange exchange) throws IOException, BadRequestException {
+        Map<String, Object> request = readJson(exchange);
+        String patientId = requiredString(request, "patientId");
+        String patientName = requiredString(request, "patientName");
+        String fieldError = MedicalDataBase.recordFieldError(patientId, patientName);
+        if (fieldError != null) {
+            throw new BadRequestException(fieldError);
+        }
+        PatientSession session = newSession(request, patientId, patientName);
+        String[] diagnoses = diagnosis(session);
+        try {
+            session.save(journal).join();
+        } catch (CompletionException e) {
+            throw new IOException("Error writing to the encounter log: " + e.getCause().getMessage(), e);
+        }
+        return new Response(201, Json.array(new StringBuilder("{\"diseases\":"), List.of(diagnoses)).append('}')
+                .toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Response cohort(HttpExchange exchange) throws IOException, BadRequestException {
+        Map<String, String> query = query(exchange);
+        SymptomResolver resolver = knowledgeBase.current().getResolver();
+        List<String> all = listParameter(query, "all", resolver);
+        List<String> any = listParameter(query, "any", resolver);
+        if (all.isEmpty() && any.isEmpty()) {
+            throw new BadRequestException("Pass 'all' and/or 'any' as comma-separated symptoms");
+        }
+        CohortIndex.Cohort cohort = cohorts.query(all, any, intParameter(query, "limit", DEFAULT_PAGE_SIZE));
+        StringBuilder out = new StringBuilder("{\"count\":").append(cohort.count()).append(",\"encounters\":");
+        return new Response(200, Json.array(out, cohort.records()).append('}').toString()
+                .getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Comma-separated symptoms, resolved like diagnosis input; unknown names are kept as typed
+    // since older encounters may use symptoms no longer in the knowledge base
+    private static List<String> listParameter(Map<String, String> query, String name, SymptomResolver resolver) {
+        List<String> values = new ArrayList<>();
+        String raw = query.get(name);
+        if (raw != null) {
+            for (String value : raw.split(",")) {
+                if (!value.isBlank()) {
+                    String symptom = resolver.resolve(value);
+                    values.add(symptom != null ? symptom : SymptomResolver.normalize(value));
+                }
+            }
+        }
+        return values;
+    }
+
+    private Response analytics(HttpExchange exchange) throws BadRequestException {
+        Map<String, String> query = query(exchange);
+        int days = intParameter(query, "days", DEFAULT_ANALYTICS_DAYS);
+        int limit = intParameter(query, "limit", DEFAULT_ANALYTICS_LIMIT);
+        StringBuilder out = new StringBuilder("{\"encounters\":").append(analytics.encounterCount());
+        out.append(",\"undated\":").append(analytics.undatedCount());
+        out.append(",\"days\":").append(days).append(",\"diseases\":");
+        counts(out, analytics.topDiseases(limit, days));
+        out.append(",\"symptoms\":");
+        counts(out, analytics.topSymptoms(limit, days));
+        out.append(",\"volume\":[");
+        List<EncounterAnalytics.DayVolume> volume = analytics.volume(Math.max(days, 1));
+        for (int i = 0; i < volume.size(); i++) {
+            out.append(i > 0 ? ",{\"day\":\"" : "{\"day\":\"").append(volume.get(i).day())
+                    .append("\",\"count\":").append(volume.get(i).count()).append('}');
+        }
+        return new Response(200, out.append("]}").toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Response associatedSymptoms(HttpExchange exchange) throws BadRequestException {
+        Map<String, String> query = query(exchange);
+        int limit = intParameter(query, "limit", DEFAULT_ANALYTICS_LIMIT);
+        StringBuilder out = new StringBuilder("{");
+        List<EncounterAnalytics.Count> symptoms;
+        if (query.containsKey("disease")) {
+            Json.quote(out.append("\"disease\":"), query.get("disease"));
+            symptoms = analytics.symptomsForDisease(query.get("disease"), limit);
+        } else if (query.containsKey("symptom")) {
+            Json.quote(out.append("\"symptom\":"), query.get("symptom"));
+            symptoms = analytics.symptomsWith(query.get("symptom"), limit);
+        } else {
+            throw new BadRequestException("Pass 'disease' or 'symptom'");
+        }
+        counts(out.append(",\"symptoms\":"), symptoms);
+        return new Response(200, out.append('}').toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void counts(StringBuilder out, List<EncounterAnalytics.Count> counts) {
+        out.append('[');
+        for (int i = 0; i < counts.size(); i++) {
+            Json.quote(out.append(i > 0 ? ",{\"name\":" : "{\"name\":"), counts.get(i).name());
+            out.append(",\"count\":").append(counts.get(i).count()).append('}');
+        }
+        out.append(']');
+    }
+
+    private static Map<String, String> query(HttpExchange exchange) throws BadRequestException {
+        Map<String, String> parameters = new HashMap<>();
+        String raw = exchange.getRequestURI().getRawQuery();
+        if (raw == null) {
+            return parameters;
+        }
+        for (String pair : raw.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0) {
+                try {
+                    parameters.put(URLDecoder.decode(pair.substring(0, equals), StandardCharsets.UTF_8),
+                            URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8));
+                } catch (IllegalArgumentException e) {
+                    throw new BadRequestException("Malformed query string: " + e.getMessage());
+                }
+            }
+        }
+        return parameters;
+    }
+
+    private static int intParameter(Map<String, String> query, String name, int defaultValue)
+            throws BadRequestException {
+        String value = query.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            int parsed = Integer.parseInt(value);
+            if (parsed < 0 || parsed > 10_000) {
+                throw new NumberFormatException();
+            }
+            return parsed;
+        } catch (NumberFormatException e) {
+            throw new BadRequestException("'" + name + "' must be an integer between 0 and 10000");
+        }
+    }
+
+    private PatientSession newSession(Map<String, Object> request, String patientId, String patientName)
+            throws BadRequestException {
+        if (!(request.get("symptoms") instanceof List<?> symptoms) || symptoms.isEmpty()) {
+            throw new BadRequestException("'symptoms' must be a non-empty array of strings");
+        }
+        PatientSession session = new PatientSession(knowledgeBase.current(), patientId, patientName);
+        List<String> unrecognized = new ArrayList<>();
+        for (Object symptom : symptoms) {
+            if (!(symptom instanceof String name)) {
+                throw new BadRequestException("'symptoms' must be a non-empty array of strings");
+            }
+            try {
+                session.addSymptom(name);
+            } catch (UnrecognizedSymptomException e) {
+                unrecognized.add(e.getMessage());
+            }
+        }
+        if (!unrecognized.isEmpty()) {
+            throw new BadRequestException(String.join("; ", unrecognized));
+        }
+        return session;
+    }
+
+    private static String[] diagnosis(PatientSession session) throws IOException {
+        try {
+            return session.diagnosis();
+        } catch (UnrecognizedDiseaseException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    private static String requiredString(Map<String, Object> request, String field) throws BadRequestException {
+        if (!(request.get(field) instanceof String value) || value.isBlank()) {
+            throw new BadRequestException("'" + field + "' is required");
+        }
+        return value.trim();
+    }
+
+    private static Map<String, Object> readJson(HttpExchange exchange) throws IOException, BadRequestException {
+        byte[] body;
+        try (InputStream in = exchange.getRequestBody()) {
+            body = in.readNBytes(MAX_BODY_BYTES + 1);
+        }
+        if (body.length > MAX_BODY_BYTES) {
+            throw new BadRequestException("Request body too large");
+        }
+        try {
+            return Json.parseObject(new String(body, StandardCharsets.UTF_8));
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException("Invalid JSON: " + e.getMessage());
+        }
+    }
+
+    private static byte[] error(String message) {
+        return Json.quote(new StringBuilder("{\"error\":"), String.valueOf(message)).append('}')
+                .toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void sendJson(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        send(exchange, status, body);
+    }
+
+    private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
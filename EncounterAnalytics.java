@@ -0,0 +1,569 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Running totals over saved encounters: disease and symptom frequency, symptom/disease and
+// symptom/symptom co-occurrence, and per-day volume. Updated as the RecordJournal writes
+// each batch, and reduced again when compaction drops a duplicate, so queries cost
+// O(vocabulary), never O(records). Names are interned into dense IDs owned by this class
+// (stable across knowledge-base reloads) and every count lives in a primitive array or a
+// primitive open-addressing map.
+//
+// The totals are checkpointed to encounters/analytics.stats together with the log position
+// they cover; on open, records past that position are replayed once. Records are counted
+// on the day they were recorded. Records migrated without a timestamp have no such day:
+// they count in the all-time totals and in the UNDATED bucket, never in a daily window, so
+// adding and later subtracting one always touches the same bucket.
+final class EncounterAnalytics implements RecordJournal.Listener, AutoCloseable {
+    static final String STATS_FILE = "analytics.stats";
+    private static final int MAGIC = 0x45535441; // "ESTA"
+    private static final int VERSION = 3;
+    // Key in the day map for records without a recorded-at time; no real epoch day
+    private static final long UNDATED = Long.MIN_VALUE;
+
+    record Count(String name, long count) {}
+
+    record DayVolume(LocalDate day, long count) {}
+
+    // Primitive int -> long counter map with linear probing; keys are interned IDs (>= 0)
+    private static final class Counts {
+        private int[] keys = emptyKeys(8);
+        private long[] values = new long[8];
+        private int size;
+
+        private static int[] emptyKeys(int capacity) {
+            int[] keys = new int[capacity];
+            Arrays.fill(keys, -1);
+            return keys;
+        }
+
+        void add(int key, long delta) {
+            if ((size + 1) * 4 > keys.length * 3) {
+                grow();
+            }
+            int mask = keys.length - 1;
+            int mix = key * 0x9E3779B9;
+            int slot = (mix ^ (mix >>> 16)) & mask;
+            while (keys[slot] != -1 && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            if (keys[slot] == -1) {
+                keys[slot] = key;
+                size++;
+            }
+            values[slot] += delta;
+        }
+
+        private void grow() {
+            int[] oldKeys = keys;
+            long[] oldValues = values;
+            keys = emptyKeys(oldKeys.length * 2);
+            values = new long[oldKeys.length * 2];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != -1) {
+                    add(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+
+        // Adds every entry into a dense array indexed by key
+        void addTo(long[] dense) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != -1) {
+                    dense[keys[i]] += values[i];
+                }
+            }
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(size);
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != -1) {
+                    out.writeInt(keys[i]);
+                    out.writeLong(values[i]);
+                }
+            }
+        }
+
+        static Counts read(DataInputStream in) throws IOException {
+            Counts counts = new Counts();
+            int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                counts.add(in.readInt(), in.readLong());
+            }
+            return counts;
+        }
+    }
+
+    // Names interned to dense IDs in first-seen order
+    private static final class Dictionary {
+        private final Map<String, Integer> ids = new HashMap<>();
+        private final List<String> names = new ArrayList<>();
+
+        int intern(String name) {
+            Integer id = ids.get(name);
+            if (id == null) {
+                id = names.size();
+                ids.put(name, id);
+                names.add(name);
+            }
+            return id;
+        }
+
+        int id(String name) {
+            Integer id = ids.get(name);
+            return id == null ? -1 : id;
+        }
+
+        String name(int id) {
+            return names.get(id);
+        }
+
+        int size() {
+            return names.size();
+        }
+    }
+
+    private static final class Day {
+        long encounters;
+        final Counts diseases;
+        final Counts symptoms;
+
+        Day(long encounters, Counts diseases, Counts symptoms) {
+            this.encounters = encounters;
+            this.diseases = diseases;
+            this.symptoms = symptoms;
+        }
+    }
+
+    private final Path statsFile;
+    private final EncounterLog log;
+    private final Dictionary symptoms = new Dictionary();
+    private final Dictionary diseases = new Dictionary();
+    private long[] symptomCounts = new long[64];
+    private long[] diseaseCounts = new long[64];
+    private Counts[] symptomsByDisease = new Counts[64];
+    private Counts[] symptomsBySymptom = new Counts[64];
+    private final Map<Long, Day> days = new HashMap<>();
+    private long encounters;
+    private long covered;
+    // Highest segment whose dropped duplicates have been subtracted (or were never counted)
+    private int sealedThrough;
+    private int[] symptomScratch = new int[16];
+    private int[] diseaseScratch = new int[16];
+
+    EncounterAnalytics(EncounterLog log) throws IOException {
+        this.log = log;
+        this.statsFile = log.getDirectory().resolve(STATS_FILE);
+        try {
+            readStats();
+        } catch (IOException e) {
+            // Missing, stale or corrupt: rebuild from the log
+            reset();
+        }
+        if (!consistentWith(log.segments())) {
+            reset();
+        }
+        log.replay(covered, this);
+        // Everything replayed from a sealed segment was already free of duplicates
+        for (int segment : log.segments()) {
+            if (log.isSealed(segment)) {
+                sealedThrough = Math.max(sealedThrough, segment);
+            }
+        }
+    }
+
+    // False if the checkpoint counted records from a segment that was sealed since, because
+    // the duplicates dropped then were never subtracted, or if the log was truncated
+    private boolean consistentWith(int[] segments) throws IOException {
+        int coveredSegment = EncounterLog.segmentOf(covered);
+        long coveredOffset = EncounterLog.offsetOf(covered);
+        for (int segment : segments) {
+            if (segment > sealedThrough && segment <= coveredSegment && log.isSealed(segment)) {
+                return false;
+            }
+            if (segment == coveredSegment && coveredOffset > Files.size(log.segmentFile(segment))) {
+                return false;
+            }
+        }
+        return covered == 0 || Arrays.stream(segments).anyMatch(segment -> segment == coveredSegment);
+    }
+
+    private void reset() {
+        symptoms.ids.clear();
+        symptoms.names.clear();
+        diseases.ids.clear();
+        diseases.names.clear();
+        symptomCounts = new long[64];
+        diseaseCounts = new long[64];
+        symptomsByDisease = new Counts[64];
+        symptomsBySymptom = new Counts[64];
+        days.clear();
+        encounters = 0;
+        covered = 0;
+        sealedThrough = 0;
+    }
+
+    @Override
+    public synchronized void recordsWritten(List<RecordJournal.WrittenRecord> written) {
+        for (RecordJournal.WrittenRecord record : written) {
+            count(record.line(), 1);
+            covered = Math.max(covered, record.position() + record.length());
+        }
+    }
+
+    // Subtracts the repeated saves compaction dropped, then checkpoints so the totals and the
+    // sealed segment's new layout stay in step on disk
+    @Override
+    public synchronized void segmentSealed(int segment, List<String> removed) {
+        for (String line : removed) {
+            count(line, -1);
+        }
+        sealedThrough = Math.max(sealedThrough, segment);
+        try {
+            checkpoint();
+        } catch (IOException e) {
+            System.err.println("Error writing " + STATS_FILE + ": " + e.getMessage());
+        }
+    }
+
+    // patient id|patient name|symptom,symptom,...|disease,disease,...|recorded at
+    private void count(String line, int delta) {
+        String[] parts = line.split("\\|", -1);
+        if (parts.length < 4) {
+            return;
+        }
+        int symptomCount = intern(parts[2], symptoms, true);
+        int diseaseCount = intern(parts[3], diseases, false);
+        ensureCapacity();
+
+        Instant recordedAt = EncounterLog.recordedAt(line);
+        long date = recordedAt == null ? UNDATED
+                : LocalDate.ofInstant(recordedAt, ZoneId.systemDefault()).toEpochDay();
+        Day day = days.computeIfAbsent(date, k -> new Day(0, new Counts(), new Counts()));
+        encounters += delta;
+        day.encounters += delta;
+        for (int i = 0; i < symptomCount; i++) {
+            int symptom = symptomScratch[i];
+            symptomCounts[symptom] += delta;
+            day.symptoms.add(symptom, delta);
+            Counts together = symptomsBySymptom[symptom];
+            if (together == null) {
+                together = symptomsBySymptom[symptom] = new Counts();
+            }
+            for (int j = 0; j < symptomCount; j++) {
+                if (j != i) {
+                    together.add(symptomScratch[j], delta);
+                }
+            }
+        }
+        for (int i = 0; i < diseaseCount; i++) {
+            int disease = diseaseScratch[i];
+            diseaseCounts[disease] += delta;
+            day.diseases.add(disease, delta);
+            Counts linked = symptomsByDisease[disease];
+            if (linked == null) {
+                linked = symptomsByDisease[disease] = new Counts();
+            }
+            for (int j = 0; j < symptomCount; j++) {
+                linked.add(symptomScratch[j], delta);
+            }
+        }
+    }
+
+    // Interns a comma-separated list into the matching scratch array, de-duplicated
+    private int intern(String list, Dictionary dictionary, boolean symptomList) {
+        int[] scratch = symptomList ? symptomScratch : diseaseScratch;
+        int count = 0;
+        for (String item : list.split(",")) {
+            String name = item.trim().toLowerCase();
+            if (name.isEmpty()) {
+                continue;
+            }
+            int id = dictionary.intern(name);
+            boolean seen = false;
+            for (int i = 0; i < count && !seen; i++) {
+                seen = scratch[i] == id;
+            }
+            if (!seen) {
+                if (count == scratch.length) {
+                    scratch = Arrays.copyOf(scratch, count * 2);
+                }
+                scratch[count++] = id;
+            }
+        }
+        if (symptomList) {
+            symptomScratch = scratch;
+        } else {
+            diseaseScratch = scratch;
+        }
+        return count;
+    }
+
+    private void ensureCapacity() {
+        if (symptoms.size() > symptomCounts.length) {
+            int capacity = Math.max(symptoms.size(), symptomCounts.length * 2);
+            symptomCounts = Arrays.copyOf(symptomCounts, capacity);
+            symptomsBySymptom = Arrays.copyOf(symptomsBySymptom, capacity);
+        }
+        if (diseases.size() > diseaseCounts.length) {
+            int capacity = Math.max(diseases.size(), diseaseCounts.length * 2);
+            diseaseCounts = Arrays.copyOf(diseaseCounts, capacity);
+            symptomsByDisease = Arrays.copyOf(symptomsByDisease, capacity);
+        }
+    }
+
+    public synchronized long encounterCount() {
+        return encounters;
+    }
+
+    // Encounters without a recorded-at time; part of encounterCount but of no day's volume
+    public synchronized long undatedCount() {
+        Day undated = days.get(UNDATED);
+        return undated == null ? 0 : undated.encounters;
+    }
+
+    // Most frequent diagnoses over all time (days <= 0) or the last `days` days including today
+    public synchronized List<Count> topDiseases(int limit, int days) {
+        if (days <= 0) {
+            return top(diseaseCounts, diseases, limit);
+        }
+        long[] window = new long[diseases.size()];
+        for (Day day : recentDays(days)) {
+            day.diseases.addTo(window);
+        }
+        return top(window, diseases, limit);
+    }
+
+    public synchronized List<Count> topSymptoms(int limit, int days) {
+        if (days <= 0) {
+            return top(symptomCounts, symptoms, limit);
+        }
+        long[] window = new long[symptoms.size()];
+        for (Day day : recentDays(days)) {
+            day.symptoms.addTo(window);
+        }
+        return top(window, symptoms, limit);
+    }
+
+    // Symptoms most often recorded in encounters diagnosed with the disease
+    public synchronized List<Count> symptomsForDisease(String disease, int limit) {
+        int id = diseases.id(disease.trim().toLowerCase());
+        if (id < 0 || symptomsByDisease[id] == null) {
+            return List.of();
+        }
+        long[] dense = new long[symptoms.size()];
+        symptomsByDisease[id].addTo(dense);
+        return top(dense, symptoms, limit);
+    }
+
+    // Symptoms most often recorded together with the symptom
+    public synchronized List<Count> symptomsWith(String symptom, int limit) {
+        int id = symptoms.id(symptom.trim().toLowerCase());
+        if (id < 0 || symptomsBySymptom[id] == null) {
+            return List.of();
+        }
+        long[] dense = new long[symptoms.size()];
+        symptomsBySymptom[id].addTo(dense);
+        return top(dense, symptoms, limit);
+    }
+
+    // Encounters per day for the last `days` days, oldest first, including empty days
+    public synchronized List<DayVolume> volume(int days) {
+        long today = LocalDate.now().toEpochDay();
+        List<DayVolume> volume = new ArrayList<>(days);
+        for (long d = today - days + 1; d <= today; d++) {
+            Day day = this.days.get(d);
+            volume.add(new DayVolume(LocalDate.ofEpochDay(d), day == null ? 0 : day.encounters));
+        }
+        return volume;
+    }
+
+    private List<Day> recentDays(int count) {
+        long today = LocalDate.now().toEpochDay();
+        List<Day> recent = new ArrayList<>(count);
+        for (long d = today - count + 1; d <= today; d++) {
+            Day day = days.get(d);
+            if (day != null) {
+                recent.add(day);
+            }
+        }
+        return recent;
+    }
+
+    // Highest counts first, ties by name; bounded min-heap of IDs, as in DiagnosisEngine
+    private static List<Count> top(long[] counts, Dictionary dictionary, int limit) {
+        int n = Math.min(counts.length, dictionary.size());
+        int[] heap = new int[Math.max(0, Math.min(limit, n))];
+        int size = 0;
+        for (int id = 0; id < n && heap.length > 0; id++) {
+            if (counts[id] == 0) {
+                continue;
+            }
+            if (size < heap.length) {
+                heap[size] = id;
+                siftUp(heap, size++, counts, dictionary);
+            } else if (ranksBelow(heap[0], id, counts, dictionary)) {
+                heap[0] = id;
+                siftDown(heap, size, counts, dictionary);
+            }
+        }
+        Count[] result = new Count[size];
+        while (size > 0) {
+            int id = heap[0];
+            result[--size] = new Count(dictionary.name(id), counts[id]);
+            heap[0] = heap[size];
+            siftDown(heap, size, counts, dictionary);
+        }
+        return List.of(result);
+    }
+
+    private static boolean ranksBelow(int a, int b, long[] counts, Dictionary dictionary) {
+        if (counts[a] != counts[b]) {
+            return counts[a] < counts[b];
+        }
+        return dictionary.name(a).compareTo(dictionary.name(b)) > 0;
+    }
+
+    private static void siftUp(int[] heap, int index, long[] counts, Dictionary dictionary) {
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (!ranksBelow(heap[index], heap[parent], counts, dictionary)) {
+                return;
+            }
+            int swap = heap[index];
+            heap[index] = heap[parent];
+            heap[parent] = swap;
+            index = parent;
+        }
+    }
+
+    private static void siftDown(int[] heap, int size, long[] counts, Dictionary dictionary) {
+        int index = 0;
+        while (true) {
+            int lowest = index;
+            int left = index * 2 + 1;
+            int right = left + 1;
+            if (left < size && ranksBelow(heap[left], heap[lowest], counts, dictionary)) {
+                lowest = left;
+            }
+            if (right < size && ranksBelow(heap[right], heap[lowest], counts, dictionary)) {
+                lowest = right;
+            }
+            if (lowest == index) {
+                return;
+            }
+            int swap = heap[index];
+            heap[index] = heap[lowest];
+            heap[lowest] = swap;
+            index = lowest;
+        }
+    }
+
+    // Writes the totals and the log position they cover; the temp file + rename keeps the
+    // previous checkpoint intact if this one is interrupted
+    public synchronized void checkpoint() throws IOException {
+        Path temp = statsFile.resolveSibling(statsFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(covered);
+            out.writeInt(sealedThrough);
+            out.writeLong(encounters);
+            writeDictionary(out, symptoms);
+            writeDictionary(out, diseases);
+            for (int i = 0; i < symptoms.size(); i++) {
+                out.writeLong(symptomCounts[i]);
+                writeCounts(out, symptomsBySymptom[i]);
+            }
+            for (int i = 0; i < diseases.size(); i++) {
+                out.writeLong(diseaseCounts[i]);
+                writeCounts(out, symptomsByDisease[i]);
+            }
+            out.writeInt(days.size());
+            for (Map.Entry<Long, Day> entry : days.entrySet()) {
+                out.writeLong(entry.getKey());
+                out.writeLong(entry.getValue().encounters);
+                entry.getValue().diseases.write(out);
+                entry.getValue().symptoms.write(out);
+            }
+            out.writeInt(MAGIC);
+        }
+        Files.move(temp, statsFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeDictionary(DataOutputStream out, Dictionary dictionary) throws IOException {
+        out.writeInt(dictionary.size());
+        for (String name : dictionary.names) {
+            out.writeUTF(name);
+        }
+    }
+
+    private static void writeCounts(DataOutputStream out, Counts counts) throws IOException {
+        (counts == null ? new Counts() : counts).write(out);
+    }
+
+    private void readStats() throws IOException {
+        if (!Files.exists(statsFile)) {
+            throw new NoSuchFileException(statsFile.toString());
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(statsFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a " + STATS_FILE + " file");
+            }
+            covered = in.readLong();
+            sealedThrough = in.readInt();
+            encounters = in.readLong();
+            readDictionary(in, symptoms);
+            readDictionary(in, diseases);
+            symptomCounts = new long[Math.max(64, symptoms.size())];
+            symptomsBySymptom = new Counts[symptomCounts.length];
+            for (int i = 0; i < symptoms.size(); i++) {
+                symptomCounts[i] = in.readLong();
+                symptomsBySymptom[i] = Counts.read(in);
+            }
+            diseaseCounts = new long[Math.max(64, diseases.size())];
+            symptomsByDisease = new Counts[diseaseCounts.length];
+            for (int i = 0; i < diseases.size(); i++) {
+                diseaseCounts[i] = in.readLong();
+                symptomsByDisease[i] = Counts.read(in);
+            }
+            int dayCount = in.readInt();
+            for (int i = 0; i < dayCount; i++) {
+                long day = in.readLong();
+                long dayEncounters = in.readLong();
+                days.put(day, new Day(dayEncounters, Counts.read(in), Counts.read(in)));
+            }
+            if (in.readInt() != MAGIC) {
+                throw new IOException(STATS_FILE + " is truncated");
+            }
+        }
+    }
+
+    private static void readDictionary(DataInputStream in, Dictionary dictionary) throws IOException {
+        int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            dictionary.intern(in.readUTF());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        checkpoint();
+    }
+}
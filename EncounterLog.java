@@ -0,0 +1,356 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+// Patient encounters, kept apart from the curated mappings in medicalDatabase.csv so the
+// knowledge base no longer grows with patient volume. The log is a directory of numbered
+// segments, each a CSV file with its own header:
+//
+//   encounters/encounters-000001.csv          open: being written, or waiting for compaction
+//   encounters/encounters-000001.sealed.csv   sealed: compacted and never written again
+//
+// RecordJournal appends to the highest (active) segment and rotates once it passes the
+// segment size; the segments left behind are then compacted in the background, which drops
+// records written twice with the same recorded-at instant and seals them. A record's
+// position in the log is segment << 40 | byte offset, so positions keep increasing across
+// segments.
+final class EncounterLog {
+    static final String DIRECTORY = "encounters";
+    static final long DEFAULT_SEGMENT_BYTES = 64L << 20;
+    static final String HEADER = "patient id|patient name|symptoms list|possible disease|recorded at\n";
+    private static final int SEGMENT_SHIFT = 40;
+    private static final String PREFIX = "encounters-";
+    private static final String OPEN_SUFFIX = ".csv";
+    private static final String SEALED_SUFFIX = ".sealed.csv";
+    // Written once patient records have been moved out of medicalDatabase.csv
+    private static final String MIGRATED_MARKER = "medicalDatabase.migrated";
+    private static final String DEFAULT_MAPPING_ID = "P000";
+
+    private final Path directory;
+    private final long segmentBytes;
+
+    EncounterLog(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_BYTES);
+    }
+
+    EncounterLog(Path directory, long segmentBytes) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(directory);
+    }
+
+    static long position(int segment, long offset) {
+        return (long) segment << SEGMENT_SHIFT | offset;
+    }
+
+    static int segmentOf(long position) {
+        return (int) (position >>> SEGMENT_SHIFT);
+    }
+
+    static long offsetOf(long position) {
+        return position & ((1L << SEGMENT_SHIFT) - 1);
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public long getSegmentBytes() {
+        return segmentBytes;
+    }
+
+    Path openFile(int segment) {
+        return segmentPath(segment, OPEN_SUFFIX);
+    }
+
+    Path sealedFile(int segment) {
+        return segmentPath(segment, SEALED_SUFFIX);
+    }
+
+    // A file that belongs to the segment, such as its history index
+    Path segmentPath(int segment, String suffix) {
+        return directory.resolve(String.format("%s%06d%s", PREFIX, segment, suffix));
+    }
+
+    boolean isSealed(int segment) {
+        return Files.exists(sealedFile(segment));
+    }
+
+    // The file currently holding the segment's records
+    Path segmentFile(int segment) {
+        Path sealed = sealedFile(segment);
+        return Files.exists(sealed) ? sealed : openFile(segment);
+    }
+
+    // Segment numbers on disk, ascending
+    int[] segments() throws IOException {
+        Set<Integer> found = new TreeSet<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + OPEN_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                int end = name.endsWith(SEALED_SUFFIX) ? name.length() - SEALED_SUFFIX.length()
+                        : name.length() - OPEN_SUFFIX.length();
+                try {
+                    found.add(Integer.parseInt(name.substring(PREFIX.length(), end)));
+                } catch (NumberFormatException e) {
+                    // Not a segment
+                }
+            }
+        }
+        return found.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    // The segment new records go to, created if the log is empty or ends in a sealed segment
+    int activeSegment() throws IOException {
+        int[] segments = segments();
+        int last = segments.length == 0 ? 0 : segments[segments.length - 1];
+        if (last == 0 || isSealed(last)) {
+            last++;
+            openForAppend(last).close();
+        }
+        return last;
+    }
+
+    // Opens an open segment for appending, writing the header if the file is new
+    FileChannel openForAppend(int segment) throws IOException {
+        FileChannel channel = FileChannel.open(openFile(segment),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        if (channel.size() == 0) {
+            ByteBuffer header = ByteBuffer.wrap(HEADER.getBytes(StandardCharsets.UTF_8));
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+        }
+        return channel;
+    }
+
+    // Feeds every record at or after the position to the listener, with log positions
+    void replay(long from, RecordJournal.Listener listener) throws IOException {
+        for (int segment : segments()) {
+            if (segment < segmentOf(from)) {
+                continue;
+            }
+            long offset = segment == segmentOf(from) ? offsetOf(from) : 0;
+            try (FileChannel channel = FileChannel.open(segmentFile(segment), StandardOpenOption.READ)) {
+                if (offset < channel.size()) {
+                    RecordJournal.replay(channel, offset,
+                            records -> listener.recordsWritten(relocate(segment, records)));
+                }
+            }
+        }
+    }
+
+    static List<RecordJournal.WrittenRecord> relocate(int segment, List<RecordJournal.WrittenRecord> records) {
+        List<RecordJournal.WrittenRecord> relocated = new ArrayList<>(records.size());
+        for (RecordJournal.WrittenRecord record : records) {
+            relocated.add(new RecordJournal.WrittenRecord(record.line(), position(segment, record.position()),
+                    record.length()));
+        }
+        return relocated;
+    }
+
+    // Compacts an open segment that is no longer written: keeps the first copy of each record
+    // written twice, moves the result into place as the sealed file and returns the dropped lines.
+    // The open file stays until deleteOpen, so listeners can still read it while they catch up.
+    List<String> seal(int segment) throws IOException {
+        Path source = openFile(segment);
+        Path temp = directory.resolve(sealedFile(segment).getFileName() + ".tmp");
+        boolean complete = endsWithNewline(source);
+        Set<String> seen = new HashSet<>();
+        List<String> removed = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(source, StandardCharsets.UTF_8);
+             BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            String line = reader.readLine();
+            String next = line == null ? null : reader.readLine();
+            while (next != null) {
+                line = next;
+                next = reader.readLine();
+                if (next == null && !complete) {
+                    break; // A record cut short by a crash
+                }
+                if (line.indexOf('|') <= 0) {
+                    continue;
+                }
+                // Only an exact re-submission, the same line with the same recorded-at instant, is
+                // dropped; a repeat visit has its own instant, and migrated rows have none at all
+                if (recordedAt(line) == null || seen.add(line)) {
+                    writer.write(line);
+                    writer.write('\n');
+                } else {
+                    removed.add(line);
+                }
+            }
+        }
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(temp, sealedFile(segment), StandardCopyOption.ATOMIC_MOVE);
+        return removed;
+    }
+
+    void deleteOpen(int segment) throws IOException {
+        Files.deleteIfExists(openFile(segment));
+    }
+
+    // Deletes the open files a crash left behind after their sealed file was moved into place.
+    // Only RecordJournal calls this, when it opens and before it has listeners; at any other
+    // time an index may still be reading the open file until the compactor's deleteOpen.
+    void deleteSealedOpenFiles() throws IOException {
+        for (int segment : segments()) {
+            if (isSealed(segment)) {
+                deleteOpen(segment);
+            }
+        }
+    }
+
+    private static boolean endsWithNewline(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() == 0) {
+                return true;
+            }
+            ByteBuffer last = ByteBuffer.allocate(1);
+            channel.read(last, channel.size() - 1);
+            return last.get(0) == '\n';
+        }
+    }
+
+    // The record's recorded-at column, or null for records migrated from medicalDatabase.csv
+    static Instant recordedAt(String line) {
+        String[] parts = line.split("\\|", -1);
+        if (parts.length < 5 || parts[4].isBlank()) {
+            return null;
+        }
+        try {
+            return Instant.parse(parts[4].trim());
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    // One-time move of the patient records that older versions appended to medicalDatabase.csv,
+    // run explicitly with --migrate-records while nothing else has the log open. A row stays in
+    // the CSV as a symptom-to-disease mapping when its patient id is one of mappingIds (P000,
+    // the id of the generated mappings, unless others are given); every other row is a patient
+    // record. The records are appended to the log through a journal, so the indexes pick them up
+    // when they next catch up, then the marker file is written and the CSV is replaced by its
+    // mappings. Once the marker exists a rerun only finishes a replacement a crash cut short.
+    static String migrate(Path databaseFile, EncounterLog log, Set<String> mappingIds) {
+        Path rewritten = databaseFile.resolveSibling(databaseFile.getFileName() + ".tmp");
+        Path marker = log.getDirectory().resolve(MIGRATED_MARKER);
+        try {
+            if (Files.exists(marker)) {
+                if (Files.exists(rewritten)) {
+                    Files.move(rewritten, databaseFile, StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+                    System.err.println("Finished replacing " + databaseFile.getFileName() + " with its mappings");
+                } else {
+                    System.err.println("Patient records were already moved out of " + databaseFile.getFileName()
+                            + " (" + marker + " exists)");
+                }
+                return null;
+            }
+            List<String> mappings = new ArrayList<>();
+            List<String> records = new ArrayList<>();
+            String header = null;
+            if (Files.exists(databaseFile)) {
+                try (BufferedReader reader = Files.newBufferedReader(databaseFile, StandardCharsets.UTF_8)) {
+                    header = reader.readLine();
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (line.isBlank()) {
+                            continue;
+                        }
+                        String patientId = line.substring(0, Math.max(line.indexOf('|'), 0)).trim();
+                        (mappingIds.contains(patientId) ? mappings : records).add(line);
+                    }
+                }
+            }
+            if (records.isEmpty()) {
+                System.err.println("No patient records to move: every row of " + databaseFile.getFileName()
+                        + " has a mapping patient id " + mappingIds);
+                return null;
+            }
+
+            writeSynced(rewritten, header + "\n", mappings);
+            try (RecordJournal journal = new RecordJournal(log, RecordJournal.DEFAULT_BATCH_SIZE,
+                    RecordJournal.DEFAULT_BATCH_WINDOW_MILLIS, true)) {
+                List<CompletableFuture<Void>> appended = new ArrayList<>(records.size());
+                for (String record : records) {
+                    appended.add(journal.append(record));
+                }
+                CompletableFuture.allOf(appended.toArray(new CompletableFuture<?>[0])).join();
+            } catch (CompletionException e) {
+                Files.deleteIfExists(rewritten);
+                return "Error moving patient records out of " + databaseFile.getFileName() + ": "
+                        + e.getCause().getMessage() + "; check " + log.getDirectory() + "/ before running it again";
+            }
+            writeSynced(marker, records.size() + " records moved from " + databaseFile.getFileName() + "\n",
+                    List.of());
+            Files.move(rewritten, databaseFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            // Offsets into the old file are meaningless now
+            Files.deleteIfExists(databaseFile.resolveSibling("medicalDatabase.idx"));
+            Files.deleteIfExists(databaseFile.resolveSibling("medicalDatabase.stats"));
+            System.err.println("Moved " + records.size() + " patient records from " + databaseFile.getFileName()
+                    + " to " + log.getDirectory() + "/, keeping " + mappings.size() + " mappings with patient ids "
+                    + mappingIds + ":");
+            for (String record : records) {
+                System.err.println("  " + record);
+            }
+            return null;
+        } catch (IOException e) {
+            return "Error moving patient records out of " + databaseFile.getFileName() + ": " + e.getMessage();
+        }
+    }
+
+    // java MedicalAssistant --migrate-records [mapping patient ids, comma-separated]
+    static int migrateFromCommandLine(String[] args) {
+        Set<String> mappingIds = new LinkedHashSet<>();
+        for (String id : (args.length > 1 ? args[1] : DEFAULT_MAPPING_ID).split(",")) {
+            if (!id.isBlank()) {
+                mappingIds.add(id.trim());
+            }
+        }
+        String error;
+        try {
+            error = migrate(Path.of(MedicalDataBase.DATABASE_FILE), new EncounterLog(Path.of(DIRECTORY)), mappingIds);
+        } catch (IOException e) {
+            error = "Error opening " + DIRECTORY + "/: " + e.getMessage();
+        }
+        if (error != null) {
+            System.err.println(error);
+        }
+        return error == null ? 0 : 1;
+    }
+
+    private static void writeSynced(Path file, String header, List<String> lines) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write(header);
+            for (String line : lines) {
+                writer.write(line);
+                writer.write('\n');
+            }
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Immutable snapshot of symptoms.txt, disease.txt, medicalDatabase.csv and synonyms.txt.
+// Built once by MedicalDataBase (or read from a KnowledgeSnapshot) and shared by
+// every PatientSession until the files change.
+final class KnowledgeBase {
+    private final Set<String> validSymptoms;
+    private final Set<String> validDiseases;
+    private final DiagnosisEngine engine;
+    private final DiagnosisCache cache = new DiagnosisCache();
+    // Derived from the engine on first use when loaded from a KnowledgeSnapshot
+    private volatile Map<String, Set<String>> symptomToDiseases;
+    private volatile Map<String, Set<String>> diseaseToSymptoms;
+    private final Map<String, String> synonyms;
+    // Built on first use and shared by every session, request and the symptom picker
+    private volatile SymptomResolver resolver;
+    private volatile SymptomPrefixIndex prefixIndex;
+
+    KnowledgeBase(Set<String> validSymptoms, Set<String> validDiseases,
+                  Map<String, Set<String>> symptomToDiseases, Map<String, Set<String>> diseaseToSymptoms,
+                  Map<String, String> synonyms) {
+        this.validSymptoms = Collections.unmodifiableSet(new HashSet<>(validSymptoms));
+        this.validDiseases = Collections.unmodifiableSet(new HashSet<>(validDiseases));
+        this.synonyms = Map.copyOf(synonyms);
+        this.symptomToDiseases = freeze(symptomToDiseases);
+        this.diseaseToSymptoms = freeze(diseaseToSymptoms);
+        this.engine = DiagnosisEngine.fromMaps(this.validSymptoms, this.validDiseases, this.symptomToDiseases);
+    }
+
+    KnowledgeBase(Set<String> validSymptoms, Set<String> validDiseases, DiagnosisEngine engine,
+                  Map<String, String> synonyms) {
+        this.validSymptoms = Collections.unmodifiableSet(validSymptoms);
+        this.validDiseases = Collections.unmodifiableSet(validDiseases);
+        this.synonyms = Map.copyOf(synonyms);
+        this.engine = engine;
+    }
+
+    private static Map<String, Set<String>> freeze(Map<String, Set<String>> source) {
+        Map<String, Set<String>> copy = new HashMap<>();
+        for (Map.Entry<String, Set<String>> entry : source.entrySet()) {
+            copy.put(entry.getKey(), Collections.unmodifiableSet(new HashSet<>(entry.getValue())));
+        }
+        return Collections.unmodifiableMap(copy);
+    }
+
+    private synchronized void deriveMaps() {
+        if (symptomToDiseases != null) {
+            return;
+        }
+        int[] offsets = engine.postingOffsets();
+        int[] ids = engine.postingIds();
+        Map<String, Set<String>> forward = new HashMap<>();
+        Map<String, Set<String>> backward = new HashMap<>();
+        for (int s = 0; s < engine.symptomCount(); s++) {
+            String symptom = engine.symptomName(s);
+            for (int i = offsets[s]; i < offsets[s + 1]; i++) {
+                String disease = engine.diseaseName(ids[i]);
+                forward.computeIfAbsent(symptom, k -> new HashSet<>()).add(disease);
+                backward.computeIfAbsent(disease, k -> new HashSet<>()).add(symptom);
+            }
+        }
+        diseaseToSymptoms = freeze(backward);
+        symptomToDiseases = freeze(forward);
+    }
+
+    public String[] diagnosis(List<String> patientSymptoms) throws UnrecognizedDiseaseException {
+        long start = System.nanoTime();
+        try {
+            int[] ids = engine.symptomIds(patientSymptoms);
+            DiagnosisCache.Key key = new DiagnosisCache.Key(ids);
+            String[] diagnoses = cache.get(key);
+            if (diagnoses == null) {
+                // Errors are not cached; they are rare and carry the offending disease name
+                diagnoses = engine.diagnosis(ids);
+                cache.put(key, diagnoses);
+            }
+            return diagnoses;
+        } catch (UnrecognizedDiseaseException e) {
+            Metrics.DIAGNOSIS_ERRORS.increment();
+            throw e;
+        } finally {
+            Metrics.DIAGNOSIS.recordSince(start);
+        }
+    }
+
+    public ScoredDiagnosis[] rankedDiagnosis(List<String> patientSymptoms, int k) {
+        return Metrics.RANKED_DIAGNOSIS.time(() -> engine.rankedDiagnosis(patientSymptoms, k));
+    }
+
+    public boolean isValidSymptom(String normalizedSymptom) {
+        return validSymptoms.contains(normalizedSymptom);
+    }
+
+    public SymptomResolver getResolver() {
+        if (resolver == null) {
+            buildResolver();
+        }
+        return resolver;
+    }
+
+    private synchronized void buildResolver() {
+        if (resolver == null) {
+            resolver = new SymptomResolver(validSymptoms, synonyms);
+        }
+    }
+
+    public SymptomPrefixIndex getPrefixIndex() {
+        if (prefixIndex == null) {
+            buildPrefixIndex();
+        }
+        return prefixIndex;
+    }
+
+    private synchronized void buildPrefixIndex() {
+        if (prefixIndex == null) {
+            prefixIndex = new SymptomPrefixIndex(validSymptoms);
+        }
+    }
+
+    public DiagnosisCache getCache() {
+        return cache;
+    }
+
+    public DiagnosisEngine getEngine() {
+        return engine;
+    }
+
+    public Set<String> getValidSymptoms() {
+        return validSymptoms;
+    }
+
+    public Set<String> getValidDiseases() {
+        return validDiseases;
+    }
+
+    public Map<String, Set<String>> getSymptomToDiseases() {
+        if (symptomToDiseases == null) {
+            deriveMaps();
+        }
+        return symptomToDiseases;
+    }
+
+    public Map<String, Set<String>> getDiseaseToSymptoms() {
+        if (symptomToDiseases == null) {
+            deriveMaps();
+        }
+        return diseaseToSymptoms;
+    }
+}
@@ -0,0 +1,185 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Holds the current KnowledgeBase and swaps in a fresh one only when
+// symptoms.txt, disease.txt, medicalDatabase.csv or synonyms.txt change on disk (mtime/size check).
+// Loads prefer the compiled KnowledgeSnapshot and rewrite it whenever the text files
+// had to be parsed. The check and any reload run on a background thread, so callers of
+// current() keep getting the previous snapshot instead of waiting for a reload.
+final class KnowledgeBaseManager {
+    private static final long DEFAULT_CHECK_INTERVAL_MILLIS = 1000;
+    private static final ExecutorService RELOADER = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "knowledge-base-reload");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicReference<KnowledgeBase> current = new AtomicReference<>();
+    private final long checkIntervalMillis;
+    private volatile long[] loadedStamps;
+    private final AtomicLong lastCheck = new AtomicLong();
+    private final AtomicBoolean refreshQueued = new AtomicBoolean();
+    private volatile String lastError;
+
+    KnowledgeBaseManager() {
+        this(DEFAULT_CHECK_INTERVAL_MILLIS);
+    }
+
+    KnowledgeBaseManager(long checkIntervalMillis) {
+        this.checkIntervalMillis = checkIntervalMillis;
+    }
+
+    // Initial load; returns an error message or null, like the MedicalDataBase loaders
+    public String load() {
+        return reload(true);
+    }
+
+    // Parses the text files even if a snapshot is current, and rewrites the snapshot
+    public String compileSnapshot() {
+        return reload(false);
+    }
+
+    // Returns the current snapshot without blocking. Once the check interval has passed, the
+    // thread that wins the check queues a file check (and a reload if they changed) on the
+    // reload thread; the new snapshot is handed out once it is swapped in. Only while nothing
+    // has loaded yet does the caller load in line, since there is no snapshot to return.
+    public KnowledgeBase current() {
+        long now = System.currentTimeMillis();
+        long last = lastCheck.get();
+        if (now - last >= checkIntervalMillis && lastCheck.compareAndSet(last, now)) {
+            if (current.get() == null) {
+                refreshIfChanged();
+            } else if (refreshQueued.compareAndSet(false, true)) {
+                RELOADER.execute(() -> {
+                    try {
+                        refreshIfChanged();
+                    } finally {
+                        refreshQueued.set(false);
+                    }
+                });
+            }
+        }
+        return current.get();
+    }
+
+    // The last loaded snapshot, without checking the files; cheap enough for the event thread
+    public KnowledgeBase latest() {
+        return current.get();
+    }
+
+    public String refreshIfChanged() {
+        long[] stamps = loadedStamps;
+        if (stamps != null && Arrays.equals(stamps, readStamps())) {
+            return null;
+        }
+        return reload(true);
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+
+    private synchronized String reload(boolean useSnapshot) {
+        String error = Metrics.RELOAD.time(() -> load(useSnapshot));
+        if (error != null) {
+            Metrics.RELOAD_FAILURES.increment();
+        }
+        return error;
+    }
+
+    private String load(boolean useSnapshot) {
+        MedicalDataBase loader = new MedicalDataBase("P000", "Unknown");
+        String error = loader.initializeFiles();
+        if (error == null) {
+            // Needed by both load paths; the snapshot does not hold them
+            error = loader.loadSynonyms();
+        }
+        if (error != null) {
+            lastError = error;
+            return error;
+        }
+
+        // Stamp before reading so an edit made during the load triggers another reload
+        long[] stamps = readStamps();
+        if (useSnapshot && current.get() != null && Arrays.equals(stamps, loadedStamps)) {
+            return null;
+        }
+        Path snapshotFile = Path.of(KnowledgeSnapshot.SNAPSHOT_FILE);
+        if (useSnapshot) {
+            try {
+                long start = System.nanoTime();
+                KnowledgeBase compiled = KnowledgeSnapshot.read(snapshotFile, stamps, loader.getSynonyms());
+                Metrics.LOAD_SNAPSHOT.recordSince(start);
+                if (compiled != null) {
+                    lastError = null;
+                    swap(compiled);
+                    loadedStamps = stamps;
+                    return null;
+                }
+            } catch (IOException e) {
+                // Fall back to the text files
+                System.err.println("Ignoring " + KnowledgeSnapshot.SNAPSHOT_FILE + ": " + e.getMessage());
+            }
+        }
+
+        // The three files fill separate fields of the loader, so they are read side by side;
+        // errors are still reported in file order
+        ForkJoinTask<String> symptoms = DatabaseFileParser.LOAD_POOL.submit(
+                () -> Metrics.LOAD_SYMPTOMS.time(loader::loadSymptoms));
+        ForkJoinTask<String> diseases = DatabaseFileParser.LOAD_POOL.submit(
+                () -> Metrics.LOAD_DISEASES.time(loader::loadDiseases));
+        String databaseError = Metrics.LOAD_DATABASE.time(loader::loadDatabase);
+        error = symptoms.join();
+        if (error == null) {
+            error = diseases.join();
+        }
+        if (error == null) {
+            error = databaseError;
+        }
+        lastError = error;
+        if (error != null) {
+            // Keep serving the previous snapshot if there is one
+            return error;
+        }
+
+        KnowledgeBase parsed = loader.snapshot();
+        swap(parsed);
+        loadedStamps = stamps;
+        try {
+            KnowledgeSnapshot.write(parsed, stamps, snapshotFile);
+        } catch (IOException e) {
+            System.err.println("Could not write " + KnowledgeSnapshot.SNAPSHOT_FILE + ": " + e.getMessage());
+        }
+        return null;
+    }
+
+    private void swap(KnowledgeBase next) {
+        KnowledgeBase previous = current.getAndSet(next);
+        Metrics.setKnowledgeBase(next);
+        Metrics.RELOADS.increment();
+        if (previous != null) {
+            // Free the old results now rather than when the last session lets go of the snapshot
+            previous.getCache().invalidate();
+        }
+    }
+
+    private static long[] readStamps() {
+        String[] files = {MedicalDataBase.SYMPTOMS_FILE, MedicalDataBase.DISEASES_FILE, MedicalDataBase.DATABASE_FILE,
+                MedicalDataBase.SYNONYMS_FILE};
+        long[] stamps = new long[files.length * 2];
+        for (int i = 0; i < files.length; i++) {
+            File file = new File(files[i]);
+            stamps[i * 2] = file.lastModified();
+            stamps[i * 2 + 1] = file.length();
+        }
+        return stamps;
+    }
+}
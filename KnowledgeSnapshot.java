@@ -0,0 +1,205 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+// Compiled binary form of a KnowledgeBase, so startup reads one file instead of parsing
+// symptoms.txt, disease.txt and medicalDatabase.csv. Layout (little-endian):
+//
+//   magic, version, source file stamps (mtime/size of the text files, synonyms.txt included)
+//   symptom count, disease count, posting count, symptom name bytes, disease name bytes
+//   symptom name offsets [S + 1], symptom names (UTF-8)
+//   disease name offsets [D + 1], disease names (UTF-8)
+//   valid symptom flags [S], recognized disease flags [D], padding to 4 bytes
+//   posting offsets [S + 1], posting disease IDs [P]   (CSR, as in DiagnosisEngine)
+//   CRC32 of everything above
+//
+// A snapshot whose stamps no longer match the text files is stale and is ignored. The
+// small synonyms.txt is not compiled in; callers read it and pass it to read().
+//
+// read() is a full deserialization step, not a zero-copy view: the file is mapped for
+// one sequential pass that copies names, flags and postings into the heap arrays and sets
+// DiagnosisEngine works on. What it saves is the text parsing and the per-record map
+// building, which dominate a load; the name-keyed maps are only derived if asked for.
+final class KnowledgeSnapshot {
+    static final String SNAPSHOT_FILE = "knowledgeBase.snapshot";
+    private static final int MAGIC = 0x424B444D; // "MDKB"
+    private static final int VERSION = 1;
+
+    private KnowledgeSnapshot() {
+    }
+
+    public static void write(KnowledgeBase kb, long[] sourceStamps, Path file) throws IOException {
+        DiagnosisEngine engine = kb.getEngine();
+        String[] symptoms = engine.symptomNames();
+        String[] diseases = engine.diseaseNames();
+        int[] postingOffsets = engine.postingOffsets();
+        int[] postingIds = engine.postingIds();
+        byte[][] symptomBytes = encode(symptoms);
+        byte[][] diseaseBytes = encode(diseases);
+        int symptomBlob = totalLength(symptomBytes);
+        int diseaseBlob = totalLength(diseaseBytes);
+
+        long size = 4L * 3 + 8L * sourceStamps.length + 4L * 5
+                + 4L * (symptoms.length + 1) + symptomBlob
+                + 4L * (diseases.length + 1) + diseaseBlob
+                + symptoms.length + diseases.length;
+        size = align(size);
+        size += 4L * postingOffsets.length + 4L * postingIds.length + 8;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Knowledge base too large for a snapshot");
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(sourceStamps.length);
+        for (long stamp : sourceStamps) {
+            buffer.putLong(stamp);
+        }
+        buffer.putInt(symptoms.length).putInt(diseases.length).putInt(postingIds.length)
+                .putInt(symptomBlob).putInt(diseaseBlob);
+        putStrings(buffer, symptomBytes);
+        putStrings(buffer, diseaseBytes);
+        for (String symptom : symptoms) {
+            buffer.put((byte) (kb.isValidSymptom(symptom) ? 1 : 0));
+        }
+        for (int d = 0; d < diseases.length; d++) {
+            buffer.put((byte) (engine.isRecognizedDisease(d) ? 1 : 0));
+        }
+        buffer.position((int) align(buffer.position()));
+        buffer.asIntBuffer().put(postingOffsets).put(postingIds);
+        buffer.position(buffer.position() + 4 * (postingOffsets.length + postingIds.length));
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putLong(crc.getValue());
+        buffer.flip();
+
+        // Write beside the target and rename, so readers never see a half-written file
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Returns the snapshot's KnowledgeBase, decoded onto the heap, or null if it is missing,
+    // stale or corrupt
+    public static KnowledgeBase read(Path file, long[] sourceStamps, Map<String, String> synonyms)
+            throws IOException {
+        MappedByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < 12 || channel.size() > Integer.MAX_VALUE) {
+                return null;
+            }
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        ByteBuffer buffer = mapped.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || buffer.getInt() != sourceStamps.length) {
+            return null;
+        }
+        for (long stamp : sourceStamps) {
+            if (buffer.remaining() < 8 || buffer.getLong() != stamp) {
+                return null;
+            }
+        }
+
+        int checked = buffer.limit() - 8;
+        CRC32 crc = new CRC32();
+        crc.update(buffer.duplicate().position(0).limit(checked));
+        if (crc.getValue() != buffer.getLong(checked)) {
+            return null;
+        }
+
+        int symptomCount = buffer.getInt();
+        int diseaseCount = buffer.getInt();
+        int postingCount = buffer.getInt();
+        buffer.getInt(); // symptom name bytes
+        buffer.getInt(); // disease name bytes
+        String[] symptoms = getStrings(buffer, symptomCount);
+        String[] diseases = getStrings(buffer, diseaseCount);
+        Set<String> validSymptoms = new HashSet<>(symptomCount * 2);
+        for (int s = 0; s < symptomCount; s++) {
+            if (buffer.get() != 0) {
+                validSymptoms.add(symptoms[s]);
+            }
+        }
+        boolean[] recognized = new boolean[diseaseCount];
+        Set<String> validDiseases = new HashSet<>(diseaseCount * 2);
+        for (int d = 0; d < diseaseCount; d++) {
+            recognized[d] = buffer.get() != 0;
+            if (recognized[d]) {
+                validDiseases.add(diseases[d]);
+            }
+        }
+        buffer.position((int) align(buffer.position()));
+        IntBuffer ints = buffer.asIntBuffer();
+        int[] postingOffsets = new int[symptomCount + 1];
+        int[] postingIds = new int[postingCount];
+        ints.get(postingOffsets).get(postingIds);
+
+        DiagnosisEngine engine = new DiagnosisEngine(symptoms, diseases, recognized, postingOffsets, postingIds);
+        return new KnowledgeBase(validSymptoms, validDiseases, engine, synonyms);
+    }
+
+    private static byte[][] encode(String[] names) {
+        byte[][] encoded = new byte[names.length][];
+        for (int i = 0; i < names.length; i++) {
+            encoded[i] = names[i].getBytes(StandardCharsets.UTF_8);
+        }
+        return encoded;
+    }
+
+    private static int totalLength(byte[][] encoded) {
+        int total = 0;
+        for (byte[] bytes : encoded) {
+            total += bytes.length;
+        }
+        return total;
+    }
+
+    private static void putStrings(ByteBuffer buffer, byte[][] encoded) {
+        int offset = 0;
+        buffer.putInt(offset);
+        for (byte[] bytes : encoded) {
+            offset += bytes.length;
+            buffer.putInt(offset);
+        }
+        for (byte[] bytes : encoded) {
+            buffer.put(bytes);
+        }
+    }
+
+    private static String[] getStrings(ByteBuffer buffer, int count) {
+        int[] offsets = new int[count + 1];
+        for (int i = 0; i <= count; i++) {
+            offsets[i] = buffer.getInt();
+        }
+        byte[] blob = new byte[offsets[count]];
+        buffer.get(blob);
+        String[] names = new String[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = new String(blob, offsets[i], offsets[i + 1] - offsets[i], StandardCharsets.UTF_8);
+        }
+        return names;
+    }
+
+    private static long align(long position) {
+        return (position + 3) & ~3L;
+    }
+}
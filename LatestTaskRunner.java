@@ -0,0 +1,55 @@
+import java.awt.EventQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+// Runs GUI work off the AWT event thread on virtual threads. Submitting a new task
+// cancels the one still in flight, and only the latest task's outcome is posted
+// back to the event thread. Loading and history lookups rely on that; Diagnose and
+// Save keeps its button disabled instead, so its runner is only cancelled on close.
+final class LatestTaskRunner {
+    private static final ExecutorService EXECUTOR = Executors.newVirtualThreadPerTaskExecutor();
+
+    private long generation;
+    private Future<?> inFlight;
+
+    public synchronized <T> void submit(Callable<T> work, Consumer<T> onResult, Consumer<Exception> onError) {
+        if (inFlight != null) {
+            inFlight.cancel(true);
+        }
+        long mine = ++generation;
+        inFlight = EXECUTOR.submit(() -> {
+            try {
+                T result = work.call();
+                deliver(mine, () -> onResult.accept(result));
+            } catch (Exception e) {
+                deliver(mine, () -> onError.accept(e));
+            }
+        });
+    }
+
+    public synchronized void cancel() {
+        generation++;
+        if (inFlight != null) {
+            inFlight.cancel(true);
+            inFlight = null;
+        }
+    }
+
+    // Checked again on the event thread so a result that lost the race is dropped
+    private void deliver(long mine, Runnable onEdt) {
+        if (isCurrent(mine)) {
+            EventQueue.invokeLater(() -> {
+                if (isCurrent(mine)) {
+                    onEdt.run();
+                }
+            });
+        }
+    }
+
+    private synchronized boolean isCurrent(long mine) {
+        return generation == mine;
+    }
+}
@@ -0,0 +1,190 @@
+import java.util.Arrays;
+
+// Diagnosis state for a symptom selection that changes one symptom at a time, as in the
+// symptom picker. Each disease keeps a count of the selected symptoms linked to it, and
+// diseases are grouped into buckets by that count, so selecting or deselecting a symptom
+// only walks that symptom's postings. The exact matches are the bucket whose count equals
+// the number of selected symptoms. Not thread-safe; the GUI uses it on the event thread.
+final class LiveDiagnosis {
+    private final DiagnosisEngine engine;
+    private final boolean[] isSelected;
+    // Selected symptom IDs, in selection order
+    private int[] selected = new int[16];
+    private int selectedCount;
+    // Selected symptoms linked to a disease missing from disease.txt
+    private int unrecognizedCount;
+
+    private final int[] matches;
+    // bucketMembers[c][0 .. bucketSizes[c]) are the diseases with matches == c (c >= 1), and
+    // bucketPositions[d] is disease d's index in its bucket
+    private int[][] bucketMembers = new int[17][];
+    private int[] bucketSizes = new int[17];
+    private final int[] bucketPositions;
+
+    LiveDiagnosis(DiagnosisEngine engine) {
+        this.engine = engine;
+        this.isSelected = new boolean[engine.symptomCount()];
+        this.matches = new int[engine.diseaseCount()];
+        this.bucketPositions = new int[engine.diseaseCount()];
+    }
+
+    public DiagnosisEngine getEngine() {
+        return engine;
+    }
+
+    // Returns false if the symptom was already selected
+    public boolean select(int symptom) {
+        if (isSelected[symptom]) {
+            return false;
+        }
+        isSelected[symptom] = true;
+        if (selectedCount == selected.length) {
+            selected = Arrays.copyOf(selected, selectedCount * 2);
+        }
+        selected[selectedCount++] = symptom;
+        if (engine.unrecognizedDisease(symptom) != null) {
+            unrecognizedCount++;
+        }
+        int[] offsets = engine.postingOffsets();
+        int[] ids = engine.postingIds();
+        for (int p = offsets[symptom]; p < offsets[symptom + 1]; p++) {
+            int d = ids[p];
+            move(d, matches[d], matches[d] + 1);
+            matches[d]++;
+        }
+        return true;
+    }
+
+    // Returns false if the symptom was not selected
+    public boolean deselect(int symptom) {
+        if (!isSelected[symptom]) {
+            return false;
+        }
+        isSelected[symptom] = false;
+        int index = 0;
+        while (selected[index] != symptom) {
+            index++;
+        }
+        System.arraycopy(selected, index + 1, selected, index, selectedCount - index - 1);
+        selectedCount--;
+        if (engine.unrecognizedDisease(symptom) != null) {
+            unrecognizedCount--;
+        }
+        int[] offsets = engine.postingOffsets();
+        int[] ids = engine.postingIds();
+        for (int p = offsets[symptom]; p < offsets[symptom + 1]; p++) {
+            int d = ids[p];
+            move(d, matches[d], matches[d] - 1);
+            matches[d]--;
+        }
+        return true;
+    }
+
+    public void clear() {
+        while (selectedCount > 0) {
+            deselect(selected[selectedCount - 1]);
+        }
+    }
+
+    public int getSelectedCount() {
+        return selectedCount;
+    }
+
+    public boolean isSelected(int symptom) {
+        return isSelected[symptom];
+    }
+
+    // Same result as DiagnosisEngine.diagnosis for the selected symptoms, in O(result)
+    public String[] diagnosis() throws UnrecognizedDiseaseException {
+        if (selectedCount == 0) {
+            return new String[0];
+        }
+        if (unrecognizedCount > 0) {
+            for (int i = 0; i < selectedCount; i++) {
+                String disease = engine.unrecognizedDisease(selected[i]);
+                if (disease != null) {
+                    throw new UnrecognizedDiseaseException("Disease '" + disease + "' not recognized");
+                }
+            }
+        }
+        if (selectedCount >= bucketSizes.length || bucketSizes[selectedCount] == 0) {
+            return new String[0];
+        }
+        int[] ids = Arrays.copyOf(bucketMembers[selectedCount], bucketSizes[selectedCount]);
+        Arrays.sort(ids);
+        String[] result = new String[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            result[i] = engine.diseaseName(ids[i]);
+        }
+        return result;
+    }
+
+    // Same result as DiagnosisEngine.rankedDiagnosis for the selected symptoms. Buckets are
+    // visited from the highest match count down; a disease matching m symptoms scores at most
+    // m / selected, so the walk stops once that bound falls below the k-th best score.
+    public ScoredDiagnosis[] rankedDiagnosis(int k) {
+        if (selectedCount == 0 || k <= 0) {
+            return new ScoredDiagnosis[0];
+        }
+        int[] heap = new int[k];
+        int[] heapMatched = new int[k];
+        double[] heapScores = new double[k];
+        int size = 0;
+        for (int m = Math.min(selectedCount, bucketSizes.length - 1); m >= 1; m--) {
+            if (size == k && (double) m / selectedCount < heapScores[0]) {
+                break;
+            }
+            for (int i = 0; i < bucketSizes[m]; i++) {
+                int d = bucketMembers[m][i];
+                if (!engine.isRecognizedDisease(d)) {
+                    continue;
+                }
+                double score = (double) m / (selectedCount + engine.diseaseSymptomCount(d) - m);
+                if (size < k) {
+                    heap[size] = d;
+                    heapMatched[size] = m;
+                    heapScores[size] = score;
+                    DiagnosisEngine.siftUp(heap, heapMatched, heapScores, size++);
+                } else if (DiagnosisEngine.better(score, d, heapScores[0], heap[0])) {
+                    heap[0] = d;
+                    heapMatched[0] = m;
+                    heapScores[0] = score;
+                    DiagnosisEngine.siftDown(heap, heapMatched, heapScores, size);
+                }
+            }
+        }
+
+        ScoredDiagnosis[] result = new ScoredDiagnosis[size];
+        for (int i = size - 1; i >= 0; i--) {
+            int d = heap[0];
+            result[i] = new ScoredDiagnosis(engine.diseaseName(d), heapMatched[0], engine.diseaseSymptomCount(d),
+                    heapScores[0]);
+            DiagnosisEngine.swap(heap, heapMatched, heapScores, 0, i);
+            DiagnosisEngine.siftDown(heap, heapMatched, heapScores, i);
+        }
+        return result;
+    }
+
+    // Moves disease d from bucket `from` to bucket `to`; bucket 0 is not tracked
+    private void move(int d, int from, int to) {
+        if (from > 0) {
+            int last = bucketMembers[from][--bucketSizes[from]];
+            bucketMembers[from][bucketPositions[d]] = last;
+            bucketPositions[last] = bucketPositions[d];
+        }
+        if (to > 0) {
+            if (to >= bucketSizes.length) {
+                bucketMembers = Arrays.copyOf(bucketMembers, to * 2);
+                bucketSizes = Arrays.copyOf(bucketSizes, to * 2);
+            }
+            int[] members = bucketMembers[to];
+            if (members == null) {
+                members = bucketMembers[to] = new int[16];
+            } else if (bucketSizes[to] == members.length) {
+                members = bucketMembers[to] = Arrays.copyOf(members, members.length * 2);
+            }
+            bucketPositions[d] = bucketSizes[to];
+            members[bucketSizes[to]++] = d;
+        }
+    }
+}
@@ -7,335 +7,48 @@ import java.awt.TextArea;
 import java.awt.TextField;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.ItemEvent;
 import java.awt.event.WindowEvent;
 import java.awt.event.WindowListener;
 import java.awt.GridLayout;
 import java.awt.List; // Explicitly for AWT List component
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
+import java.util.LinkedHashSet;
 import java.util.Set;
-
-// Custom exceptions
-class UnrecognizedSymptomException extends Exception {
-    public UnrecognizedSymptomException(String message) {
-        super(message);
-    }
-}
-
-class UnrecognizedDiseaseException extends Exception {
-    public UnrecognizedDiseaseException(String message) {
-        super(message);
-    }
-}
-
-class MedicalDataBase {
-    private Map<String, Set<String>> symptomToDiseases;
-    private Map<String, Set<String>> diseaseToSymptoms;
-    private java.util.List<String> patientSymptoms; // Explicitly use java.util.List
-    private Set<String> validSymptoms;
-    private Set<String> validDiseases;
-    private String patientId;
-    private String patientName;
-
-    public MedicalDataBase(String patientId, String patientName) {
-        this.patientId = patientId;
-        this.patientName = patientName;
-        this.symptomToDiseases = new HashMap<>();
-        this.diseaseToSymptoms = new HashMap<>();
-        this.patientSymptoms = new ArrayList<>();
-        this.validSymptoms = new HashSet<>();
-        this.validDiseases = new HashSet<>();
-    }
-
-    public String initializeFiles() {
-        try {
-            // Create symptoms.txt with 30 symptoms if it doesn't exist
-            File symptomsFile = new File("symptoms.txt");
-            if (!symptomsFile.exists()) {
-                try (BufferedWriter writer = new BufferedWriter(new FileWriter(symptomsFile))) {
-                    String[] symptoms = {
-                        "fever", "cough", "fatigue", "headache", "sore throat",
-                        "nausea", "vomiting", "diarrhea", "shortness of breath", "chest pain",
-                        "joint pain", "muscle pain", "rash", "chills", "dizziness",
-                        "abdominal pain", "loss of appetite", "sweating", "swollen lymph nodes", "weight loss",
-                        "sneezing", "runny nose", "back pain", "itchy eyes", "ear pain",
-                        "difficulty swallowing", "dry mouth", "numbness", "blurred vision", "constipation"
-                    };
-                    for (String symptom : symptoms) {
-                        writer.write(symptom + "\n");
-                    }
-                }
-            }
-
-            // Create disease.txt with 30 diseases if it doesn't exist
-            File diseaseFile = new File("disease.txt");
-            if (!diseaseFile.exists()) {
-                try (BufferedWriter writer = new BufferedWriter(new FileWriter(diseaseFile))) {
-                    String[] diseases = {
-                        "flu", "common cold", "migraine", "pneumonia", "bronchitis",
-                        "gastroenteritis", "appendicitis", "arthritis", "dengue fever", "malaria",
-                        "typhoid fever", "strep throat", "sinusitis", "tonsillitis", "urinary tract infection",
-                        "mononucleosis", "hepatitis", "meningitis", "lyme disease", "chronic fatigue syndrome",
-                        "asthma", "conjunctivitis", "ear infection", "gastritis", "hypertension",
-                        "diabetes", "anemia", "eczema", "sprain", "kidney stones"
-                    };
-                    for (String disease : diseases) {
-                        writer.write(disease + "\n");
-                    }
-                }
-            }
-
-            // Create medicalDatabase.csv with default mappings if it doesn't exist
-            File csvFile = new File("medicalDatabase.csv");
-            if (!csvFile.exists()) {
-                try (BufferedWriter writer = new BufferedWriter(new FileWriter(csvFile))) {
-                    writer.write("patient id|patient name|symptoms list|possible disease\n");
-                    String[] mappings = {
-                        "P000|Setup|fever,cough,fatigue|flu",
-                        "P000|Setup|fever,cough,sore throat,sneezing,runny nose|common cold",
-                        "P000|Setup|headache,dizziness,blurred vision|migraine",
-                        "P000|Setup|cough,shortness of breath,chest pain|pneumonia",
-                        "P000|Setup|cough,shortness of breath|bronchitis",
-                        "P000|Setup|nausea,vomiting,diarrhea|gastroenteritis",
-                        "P000|Setup|abdominal pain,fever|appendicitis",
-                        "P000|Setup|joint pain,muscle pain|arthritis",
-                        "P000|Setup|fever,rash,chills|dengue fever",
-                        "P000|Setup|fever,chills,sweating|malaria",
-                        "P000|Setup|fever,abdominal pain,weight loss|typhoid fever",
-                        "P000|Setup|sore throat,swollen lymph nodes|strep throat",
-                        "P000|Setup|headache,fever,runny nose|sinusitis",
-                        "P000|Setup|sore throat,fever,difficulty swallowing|tonsillitis",
-                        "P000|Setup|abdominal pain,diarrhea,constipation|urinary tract infection",
-                        "P000|Setup|fatigue,swollen lymph nodes|mononucleosis",
-                        "P000|Setup|nausea,vomiting,abdominal pain|hepatitis",
-                        "P000|Setup|fever,headache,dizziness|meningitis",
-                        "P000|Setup|rash,joint pain|lyme disease",
-                        "P000|Setup|fatigue,weight loss|chronic fatigue syndrome",
-                        "P000|Setup|shortness of breath,cough|asthma",
-                        "P000|Setup|itchy eyes,runny nose|conjunctivitis",
-                        "P000|Setup|ear pain,fever|ear infection",
-                        "P000|Setup|abdominal pain,nausea|gastritis",
-                        "P000|Setup|dizziness,chest pain|hypertension",
-                        "P000|Setup|fatigue,weight loss|diabetes",
-                        "P000|Setup|fatigue,numbness|anemia",
-                        "P000|Setup|rash,itching|eczema",
-                        "P000|Setup|joint pain,back pain|sprain",
-                        "P000|Setup|abdominal pain,difficulty urinating|kidney stones"
-                    };
-                    for (String mapping : mappings) {
-                        writer.write(mapping + "\n");
-                    }
-                }
-            }
-            return null;
-        } catch (IOException e) {
-            return "Error initializing files: " + e.getMessage();
-        }
-    }
-
-    public String loadSymptoms() {
-        try {
-            File symptomsFile = new File("symptoms.txt");
-            if (!symptomsFile.exists()) {
-                return "symptoms.txt not found. Please ensure the file exists.";
-            }
-            try (BufferedReader reader = new BufferedReader(new FileReader(symptomsFile))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    String symptom = line.trim().toLowerCase();
-                    if (!symptom.isEmpty()) {
-                        validSymptoms.add(symptom);
-                    }
-                }
-                if (validSymptoms.isEmpty()) {
-                    return "Warning: symptoms.txt is empty. Please add symptoms to the file.";
-                }
-            }
-            return null;
-        } catch (IOException e) {
-            return "Error reading symptoms.txt: " + e.getMessage();
-        }
-    }
-
-    public String loadDiseases() {
-        try {
-            File diseaseFile = new File("disease.txt");
-            if (!diseaseFile.exists()) {
-                return "disease.txt not found. Please ensure the file exists.";
-            }
-            try (BufferedReader reader = new BufferedReader(new FileReader(diseaseFile))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    String disease = line.trim().toLowerCase();
-                    if (!disease.isEmpty()) {
-                        validDiseases.add(disease);
-                    }
-                }
-                if (validDiseases.isEmpty()) {
-                    return "Warning: disease.txt is empty. Please add diseases to the file.";
-                }
-            }
-            return null;
-        } catch (IOException e) {
-            return "Error reading disease.txt: " + e.getMessage();
-        }
-    }
-
-    public String loadDatabase() {
-        try {
-            File file = new File("medicalDatabase.csv");
-            if (!file.exists()) {
-                return null;
-            }
-
-            try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-                String line;
-                reader.readLine(); // Skip header
-                while ((line = reader.readLine()) != null) {
-                    String[] parts = line.split("\\|");
-                    if (parts.length >= 4) {
-                        String symptoms = parts[2].trim().toLowerCase();
-                        String disease = parts[3].trim().toLowerCase();
-                        for (String symptom : symptoms.split(",")) {
-                            symptom = symptom.trim();
-                            if (!symptom.isEmpty()) {
-                                symptomToDiseases.computeIfAbsent(symptom, _ -> new HashSet<>()).add(disease);
-                                diseaseToSymptoms.computeIfAbsent(disease, _ -> new HashSet<>()).add(symptom);
-                            }
-                        }
-                    }
-                }
-            }
-            return null;
-        } catch (IOException e) {
-            return "Error reading medicalDatabase.csv: " + e.getMessage();
-        }
-    }
-
-    public void addSymptom(String symptom) throws UnrecognizedSymptomException {
-        String normalizedSymptom = symptom.trim().toLowerCase();
-        if (!validSymptoms.contains(normalizedSymptom)) {
-            throw new UnrecognizedSymptomException("Symptom '" + symptom + "' not recognized");
-        }
-        if (!patientSymptoms.contains(normalizedSymptom)) {
-            patientSymptoms.add(normalizedSymptom);
-        }
-    }
-
-    public String[] diagnosis() throws UnrecognizedDiseaseException {
-        Set<String> possibleDiseases = new HashSet<>();
-        boolean firstSymptom = true;
-
-        for (String symptom : patientSymptoms) {
-            Set<String> diseases = symptomToDiseases.getOrDefault(symptom, new HashSet<>());
-            for (String disease : diseases) {
-                if (!validDiseases.contains(disease)) {
-                    throw new UnrecognizedDiseaseException("Disease '" + disease + "' not recognized");
-                }
-            }
-            if (firstSymptom) {
-                possibleDiseases.addAll(diseases);
-                firstSymptom = false;
-            } else {
-                possibleDiseases.retainAll(diseases);
-            }
-        }
-
-        if (patientSymptoms.isEmpty()) {
-            return new String[0];
-        }
-
-        return possibleDiseases.toArray(new String[0]);
-    }
-
-    public String saveToCSV() {
-        try {
-            validateCSVFile();
-            try (BufferedWriter writer = new BufferedWriter(new FileWriter("medicalDatabase.csv", true))) {
-                String symptoms = String.join(",", patientSymptoms);
-                String diseases = String.join(",", diagnosis());
-                String record = String.format("%s|%s|%s|%s\n", patientId, patientName, symptoms, diseases);
-                writer.write(record);
-            }
-            return null;
-        } catch (IOException | UnrecognizedDiseaseException e) {
-            return "Error writing to medicalDatabase.csv: " + e.getMessage();
-        }
-    }
-
-    private void validateCSVFile() throws IOException {
-        File file = new File("medicalDatabase.csv");
-        if (!file.exists()) {
-            try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
-                writer.write("patient id|patient name|symptoms list|possible disease\n");
-            }
-        }
-        if (!file.getName().endsWith(".csv")) {
-            throw new IOException("Invalid file type: Must be a .csv file");
-        }
-    }
-
-    public Set<String> getValidSymptoms() {
-        return validSymptoms;
-    }
-
-    public Set<String> getValidDiseases() {
-        return validDiseases;
-    }
-
-    public void clearSymptoms() {
-        patientSymptoms.clear();
-    }
-}
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
 
 public class MedicalAssistant extends Frame implements ActionListener, WindowListener {
     private TextField patientIdField, patientNameField;
     private List symptomList; // Refers to java.awt.List
     private TextArea resultArea;
     private Button diagnoseButton;
-    private MedicalDataBase db;
+    private KnowledgeBaseManager knowledgeBase;
+    private TextArea historyArea;
+    private transient volatile RecordJournal journal;
+    private transient volatile PatientHistoryIndex historyIndex;
+    private final transient LatestTaskRunner loadTasks = new LatestTaskRunner();
+    private final transient LatestTaskRunner diagnoseTasks = new LatestTaskRunner();
+    private final transient LatestTaskRunner historyTasks = new LatestTaskRunner();
+    private TextField symptomSearchField;
+    private Label symptomPageLabel;
+    private Button previousPageButton, nextPageButton;
+    // Event thread only. The list shows one page of the symptoms matching the search;
+    // what is selected is kept here, in selection order, so it survives paging and filtering.
+    private final LinkedHashSet<String> selectedSymptoms = new LinkedHashSet<>();
+    private transient LiveDiagnosis liveDiagnosis;
+    private transient SymptomPrefixIndex symptomIndex;
+    private int matchesFrom, matchesTo, pageStart;
+    private static final int CLOSEST_MATCHES = 5;
+    private static final int SYMPTOM_PAGE_SIZE = 100;
 
     public MedicalAssistant() {
-        // Initialize MedicalDataBase with default values
-        db = new MedicalDataBase("P000", "Unknown");
-
-        // Perform initialization and load data
-        String initError = db.initializeFiles();
-        if (initError != null) {
-            showErrorAndExit(initError);
-            return;
-        }
-
-        String symptomsError = db.loadSymptoms();
-        if (symptomsError != null) {
-            showErrorAndExit(symptomsError);
-            return;
-        }
-
-        String diseasesError = db.loadDiseases();
-        if (diseasesError != null) {
-            showErrorAndExit(diseasesError);
-            return;
-        }
-
-        String databaseError = db.loadDatabase();
-        if (databaseError != null) {
-            showErrorAndExit(databaseError);
-            return;
-        }
+        knowledgeBase = new KnowledgeBaseManager();
 
         // Set up the Frame
         setTitle("Medical Assistant");
-        setSize(600, 400);
+        setSize(800, 400);
         setLayout(new BorderLayout());
         setBackground(java.awt.Color.LIGHT_GRAY);
 
@@ -344,6 +57,7 @@ public class MedicalAssistant extends Frame implements ActionListener, WindowLis
         northPanel.setBackground(java.awt.Color.LIGHT_GRAY);
         northPanel.add(new Label("Patient ID:"));
         patientIdField = new TextField(20);
+        patientIdField.addTextListener(e -> showHistory());
         northPanel.add(patientIdField);
         northPanel.add(new Label("Patient Name:"));
         patientNameField = new TextField(20);
@@ -352,12 +66,31 @@ public class MedicalAssistant extends Frame implements ActionListener, WindowLis
 
         // Center Panel: Symptoms Selection
         Panel centerPanel = new Panel(new BorderLayout());
-        centerPanel.add(new Label("Select Symptoms (hold Ctrl for multiple):"), BorderLayout.NORTH);
+        Panel searchPanel = new Panel(new BorderLayout(5, 0));
+        searchPanel.add(new Label("Select Symptoms (type to search, click to toggle):"), BorderLayout.WEST);
+        symptomSearchField = new TextField(20);
+        symptomSearchField.addTextListener(e -> showMatchingSymptoms());
+        searchPanel.add(symptomSearchField, BorderLayout.CENTER);
+        centerPanel.add(searchPanel, BorderLayout.NORTH);
         symptomList = new List(10, true); // java.awt.List
-        for (String symptom : db.getValidSymptoms()) {
-            symptomList.add(symptom.toLowerCase());
-        }
+        symptomList.addItemListener(this::symptomToggled);
         centerPanel.add(symptomList, BorderLayout.CENTER);
+        Panel pagePanel = new Panel(new BorderLayout(5, 0));
+        previousPageButton = new Button("<");
+        previousPageButton.addActionListener(e -> turnSymptomPage(-SYMPTOM_PAGE_SIZE));
+        pagePanel.add(previousPageButton, BorderLayout.WEST);
+        symptomPageLabel = new Label("", Label.CENTER);
+        pagePanel.add(symptomPageLabel, BorderLayout.CENTER);
+        nextPageButton = new Button(">");
+        nextPageButton.addActionListener(e -> turnSymptomPage(SYMPTOM_PAGE_SIZE));
+        pagePanel.add(nextPageButton, BorderLayout.EAST);
+        centerPanel.add(pagePanel, BorderLayout.SOUTH);
+        Panel historyPanel = new Panel(new BorderLayout());
+        historyPanel.add(new Label("Previous encounters:"), BorderLayout.NORTH);
+        historyArea = new TextArea("", 10, 40, TextArea.SCROLLBARS_VERTICAL_ONLY);
+        historyArea.setEditable(false);
+        historyPanel.add(historyArea, BorderLayout.CENTER);
+        centerPanel.add(historyPanel, BorderLayout.EAST);
         add(centerPanel, BorderLayout.CENTER);
 
         // South Panel: Button and Results
@@ -365,7 +98,8 @@ public class MedicalAssistant extends Frame implements ActionListener, WindowLis
         diagnoseButton = new Button("Diagnose and Save");
         diagnoseButton.addActionListener(this);
         southPanel.add(diagnoseButton, BorderLayout.NORTH);
-        resultArea = new TextArea("Diagnosis results will appear here...", 5, 50);
+        diagnoseButton.setEnabled(false);
+        resultArea = new TextArea("Loading symptom and disease data...", 5, 50);
         resultArea.setEditable(false);
         southPanel.add(resultArea, BorderLayout.CENTER);
         add(southPanel, BorderLayout.SOUTH);
@@ -373,13 +107,169 @@ public class MedicalAssistant extends Frame implements ActionListener, WindowLis
         // Add WindowListener to handle window closing
         addWindowListener(this);
 
+        setVisible(true);
+
+        // Load the shared knowledge base off the event thread; later file changes are picked up by the manager
+        loadTasks.submit(this::loadKnowledgeBase, this::showKnowledgeBase,
+                error -> showErrorAndExit(error.getMessage()));
+    }
+
+    private KnowledgeBase loadKnowledgeBase() throws IOException {
+        String loadError = knowledgeBase.load();
+        if (loadError != null) {
+            throw new IOException(loadError);
+        }
+        try {
+            journal = RecordJournal.shared();
+        } catch (IOException e) {
+            throw new IOException("Error opening the encounter log: " + e.getMessage(), e);
+        }
+        // Attached with appends held off, so a record saved meanwhile is either read or announced
+        try {
+            historyIndex = journal.attach(PatientHistoryIndex::new);
+        } catch (IOException e) {
+            throw new IOException("Error opening the patient history index: " + e.getMessage(), e);
+        }
+        return knowledgeBase.current();
+    }
+
+    private void showKnowledgeBase(KnowledgeBase kb) {
+        liveDiagnosis = new LiveDiagnosis(kb.getEngine());
+        showMatchingSymptoms();
+
         // Check if symptom or disease data is missing
-        if (db.getValidSymptoms().isEmpty() || db.getValidDiseases().isEmpty()) {
+        if (kb.getValidSymptoms().isEmpty() || kb.getValidDiseases().isEmpty()) {
             resultArea.setText("Error: Symptom or disease data is missing. Check symptoms.txt and disease.txt.");
-            diagnoseButton.setEnabled(false);
+            return;
         }
+        resultArea.setText("Diagnosis results will appear here...");
+        diagnoseButton.setEnabled(true);
+        showHistory();
+    }
 
-        setVisible(true);
+    // Narrows the list to the symptoms starting with the search text and shows the first page.
+    // Searching picks up the vocabulary of a reloaded knowledge base.
+    private void showMatchingSymptoms() {
+        KnowledgeBase kb = knowledgeBase.latest();
+        if (kb == null) {
+            return;
+        }
+        symptomIndex = kb.getPrefixIndex();
+        String prefix = SymptomPrefixIndex.normalize(symptomSearchField.getText());
+        matchesFrom = symptomIndex.from(prefix);
+        matchesTo = symptomIndex.to(prefix);
+        pageStart = matchesFrom;
+        showSymptomPage();
+    }
+
+    private void turnSymptomPage(int delta) {
+        int start = pageStart + delta;
+        if (start >= matchesFrom && start < matchesTo) {
+            pageStart = start;
+            showSymptomPage();
+        }
+    }
+
+    // Only the visible rows are list items; their selection is restored from selectedSymptoms
+    private void showSymptomPage() {
+        int pageEnd = Math.min(pageStart + SYMPTOM_PAGE_SIZE, matchesTo);
+        symptomList.removeAll();
+        for (int i = pageStart; i < pageEnd; i++) {
+            String symptom = symptomIndex.name(i);
+            symptomList.add(symptom);
+            if (selectedSymptoms.contains(symptom)) {
+                symptomList.select(i - pageStart);
+            }
+        }
+        previousPageButton.setEnabled(pageStart > matchesFrom);
+        nextPageButton.setEnabled(pageEnd < matchesTo);
+        showSymptomCounts();
+    }
+
+    private void showSymptomCounts() {
+        int matches = matchesTo - matchesFrom;
+        int pageEnd = Math.min(pageStart + SYMPTOM_PAGE_SIZE, matchesTo);
+        symptomPageLabel.setText((matches == 0 ? "No matching symptoms"
+                : (pageStart - matchesFrom + 1) + "-" + (pageEnd - matchesFrom) + " of " + matches)
+                + (selectedSymptoms.isEmpty() ? "" : ", " + selectedSymptoms.size() + " selected"));
+    }
+
+    // Updates the candidates as symptoms are selected or deselected. Only the toggled symptom's
+    // postings are walked, so this stays on the event thread however many symptoms are selected.
+    private void symptomToggled(ItemEvent e) {
+        KnowledgeBase kb = knowledgeBase.latest();
+        if (kb == null || liveDiagnosis == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        String symptom = symptomList.getItem((Integer) e.getItem());
+        boolean selected = e.getStateChange() == ItemEvent.SELECTED;
+        if (selected) {
+            selectedSymptoms.add(symptom);
+        } else {
+            selectedSymptoms.remove(symptom);
+        }
+        showSymptomCounts();
+        DiagnosisEngine engine = kb.getEngine();
+        if (liveDiagnosis.getEngine() != engine) {
+            // The data files were reloaded since the last toggle, so replay the whole selection
+            liveDiagnosis = new LiveDiagnosis(engine);
+            for (String name : selectedSymptoms) {
+                int id = engine.symptomId(name);
+                if (id >= 0) {
+                    liveDiagnosis.select(id);
+                }
+            }
+        } else {
+            int id = engine.symptomId(symptom);
+            if (id >= 0 && selected) {
+                liveDiagnosis.select(id);
+            } else if (id >= 0) {
+                liveDiagnosis.deselect(id);
+            }
+        }
+
+        if (liveDiagnosis.getSelectedCount() == 0) {
+            resultArea.setText("Diagnosis results will appear here...");
+        } else {
+            StringBuilder result = new StringBuilder();
+            try {
+                String[] diagnoses = liveDiagnosis.diagnosis();
+                appendDiagnoses(result, diagnoses,
+                        diagnoses.length == 0 ? liveDiagnosis.rankedDiagnosis(CLOSEST_MATCHES) : null);
+            } catch (UnrecognizedDiseaseException ex) {
+                result.append("Error: ").append(ex.getMessage());
+            }
+            resultArea.setText(result.toString());
+        }
+        Metrics.LIVE_DIAGNOSIS.recordSince(start);
+    }
+
+    private static void appendDiagnoses(StringBuilder result, String[] diagnoses, ScoredDiagnosis[] closest) {
+        if (diagnoses.length == 0) {
+            result.append("No diagnoses found for the selected symptoms.");
+            if (closest.length > 0) {
+                result.append("\nClosest matches: ").append(Arrays.toString(closest));
+            }
+        } else {
+            result.append("Possible diagnoses: ").append(Arrays.toString(diagnoses));
+        }
+    }
+
+    // Looks up the previous encounters for the typed Patient ID off the event thread
+    private void showHistory() {
+        String patientId = patientIdField.getText().trim();
+        PatientHistoryIndex index = historyIndex;
+        if (patientId.isEmpty() || index == null) {
+            historyTasks.cancel();
+            historyArea.setText("");
+            return;
+        }
+        historyTasks.submit(() -> index.history(patientId),
+                history -> historyArea.setText(history.isEmpty()
+                        ? "No previous encounters for " + patientId + "."
+                        : String.join("\n", history)),
+                error -> historyArea.setText("Error reading history: " + error.getMessage()));
     }
 
     private void showErrorAndExit(String message) {
@@ -427,74 +317,100 @@ public class MedicalAssistant extends Frame implements ActionListener, WindowLis
                 resultArea.setText("Error: Please enter both Patient ID and Patient Name.");
                 return;
             }
-
-            // Reinitialize MedicalDataBase with user-provided ID and name
-            db = new MedicalDataBase(patientId, patientName);
-            String initError = db.initializeFiles();
-            if (initError != null) {
-                resultArea.setText(initError);
-                return;
-            }
-            String symptomsError = db.loadSymptoms();
-            if (symptomsError != null) {
-                resultArea.setText(symptomsError);
+            String fieldError = MedicalDataBase.recordFieldError(patientId, patientName);
+            if (fieldError != null) {
+                resultArea.setText("Error: " + fieldError + ".");
                 return;
             }
-            String diseasesError = db.loadDiseases();
-            if (diseasesError != null) {
-                resultArea.setText(diseasesError);
-                return;
-            }
-            String databaseError = db.loadDatabase();
-            if (databaseError != null) {
-                resultArea.setText(databaseError);
-                return;
-            }
-
-            // Clear previous symptoms
-            db.clearSymptoms();
 
-            // Add selected symptoms
-            String[] selectedSymptoms = symptomList.getSelectedItems();
-            if (selectedSymptoms.length == 0) {
+            String[] symptoms = selectedSymptoms.toArray(new String[0]);
+            if (symptoms.length == 0) {
                 resultArea.setText("Error: Please select at least one symptom.");
                 return;
             }
 
-            StringBuilder errorMessages = new StringBuilder();
-            for (String symptom : selectedSymptoms) {
-                try {
-                    db.addSymptom(symptom);
-                } catch (UnrecognizedSymptomException ex) {
-                    errorMessages.append(ex.getMessage()).append("\n");
-                }
-            }
+            // Diagnose and save off the event thread. The button stays disabled until the result is
+            // back, so a save is never superseded by a newer one; only closing the window cancels it.
+            diagnoseButton.setEnabled(false);
+            resultArea.setText("Diagnosing...");
+            diagnoseTasks.submit(() -> diagnoseAndSave(patientId, patientName, symptoms),
+                    message -> {
+                        resultArea.setText(message);
+                        diagnoseButton.setEnabled(true);
+                        showHistory();
+                    },
+                    error -> {
+                        resultArea.setText("Error: " + error.getMessage());
+                        diagnoseButton.setEnabled(true);
+                    });
+        }
+    }
 
-            if (errorMessages.length() > 0) {
-                resultArea.setText(errorMessages.toString());
-                return;
-            }
+    // Runs on a background thread and returns the text for resultArea
+    private String diagnoseAndSave(String patientId, String patientName, String[] selectedSymptoms) {
+        // Start a lightweight session against the current knowledge base snapshot
+        KnowledgeBase kb = knowledgeBase.current();
+        if (kb == null) {
+            return knowledgeBase.getLastError();
+        }
+        String reloadError = knowledgeBase.getLastError();
+        PatientSession session = new PatientSession(kb, patientId, patientName);
 
-            // Perform diagnosis and save
+        // Add selected symptoms
+        StringBuilder errorMessages = new StringBuilder();
+        for (String symptom : selectedSymptoms) {
             try {
-                String[] diagnoses = db.diagnosis();
-                if (diagnoses.length == 0) {
-                    resultArea.setText("No diagnoses found for the selected symptoms.");
-                } else {
-                    resultArea.setText("Possible diagnoses: " + Arrays.toString(diagnoses));
-                }
-                String saveError = db.saveToCSV();
-                if (saveError != null) {
-                    resultArea.append("\n" + saveError);
-                }
-            } catch (UnrecognizedDiseaseException ex) {
-                resultArea.setText("Error: " + ex.getMessage());
+                session.addSymptom(symptom);
+            } catch (UnrecognizedSymptomException ex) {
+                errorMessages.append(ex.getMessage()).append("\n");
             }
         }
+
+        if (errorMessages.length() > 0) {
+            return errorMessages.toString();
+        }
+
+        // Perform diagnosis and save
+        StringBuilder result = new StringBuilder();
+        try {
+            String[] diagnoses = session.diagnosis();
+            appendDiagnoses(result, diagnoses,
+                    diagnoses.length == 0 ? session.rankedDiagnosis(CLOSEST_MATCHES) : null);
+            if (reloadError != null) {
+                result.append("\nUsing previously loaded data: ").append(reloadError);
+            }
+        } catch (UnrecognizedDiseaseException ex) {
+            return "Error: " + ex.getMessage();
+        }
+
+        // A request cancelled by closing the window is dropped before it writes anything
+        if (Thread.currentThread().isInterrupted()) {
+            return result.toString();
+        }
+        try {
+            session.save(journal).join();
+        } catch (CompletionException | CancellationException ex) {
+            Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+            result.append("\nError writing to the encounter log: ").append(cause.getMessage());
+        }
+        return result.toString();
     }
 
     @Override
     public void windowClosing(WindowEvent e) {
+        loadTasks.cancel();
+        diagnoseTasks.cancel();
+        historyTasks.cancel();
+        try {
+            if (journal != null) {
+                journal.close();
+            }
+            if (historyIndex != null) {
+                historyIndex.close();
+            }
+        } catch (IOException ex) {
+            System.err.println("Error closing the encounter log: " + ex.getMessage());
+        }
         dispose();
         System.exit(0);
     }
@@ -513,6 +429,32 @@ public class MedicalAssistant extends Frame implements ActionListener, WindowLis
     public void windowDeactivated(WindowEvent e) {}
 
     public static void main(String[] args) {
+        String metricsError = Metrics.registerMBean();
+        if (metricsError != null) {
+            System.err.println(metricsError);
+        }
+
+        // Headless modes for servers without a display
+        if (args.length > 0 && args[0].equals("--batch")) {
+            System.exit(BatchDiagnosis.runFromCommandLine(args));
+        }
+        if (args.length > 0 && args[0].equals("--serve")) {
+            int status = DiagnosisServer.runFromCommandLine(args);
+            if (status != 0) {
+                System.exit(status);
+            }
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--migrate-records")) {
+            System.exit(EncounterLog.migrateFromCommandLine(args));
+        }
+        if (args.length > 0 && args[0].equals("--compile-snapshot")) {
+            String error = new KnowledgeBaseManager().compileSnapshot();
+            if (error != null) {
+                System.err.println(error);
+            }
+            System.exit(error == null ? 0 : 1);
+        }
         java.awt.EventQueue.invokeLater(() -> new MedicalAssistant());
     }
 }
\ No newline at end of file
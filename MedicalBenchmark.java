@@ -0,0 +1,306 @@
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+// Micro-benchmarks for the load, diagnose and save hot paths. Run from a directory
+// created by SyntheticData (MedicalDataBase reads its files from the working directory):
+//
+//   java SyntheticData bench 10000 50000 1000000
+//   cd bench && java -cp .. MedicalBenchmark [name prefix...]
+//
+// Each benchmark runs in its own JVM (--in-process runs them all in this one), so one
+// benchmark's JIT profile cannot shape the next. It is warmed up for WARMUP_NANOS (and at
+// least its minimum number of operations), then timed in batches of operations lasting about
+// BATCH_NANOS, so the cost of reading the clock stays out of sub-microsecond results; slow
+// operations get a batch of one. The report shows throughput, percentiles of the per-batch
+// mean latency and allocated bytes per operation summed over every platform thread, so work
+// done on ForkJoin workers or the journal writer is counted. Results that would otherwise be
+// unused go through consume(), so the JIT cannot drop the work. The hot-reload stress run
+// that checks diagnoses against the legacy path is part of SelfCheck.
+final class MedicalBenchmark {
+    private static final int QUERIES = 4096;
+    private static final int LIVE_SELECTED = 200;
+    private static final long BATCH_NANOS = 50_000;
+    private static final long WARMUP_NANOS = 5_000_000_000L;
+    // In run order; each forked JVM runs one of them
+    private static final List<String> BENCHMARKS = List.of(
+            "load.symptoms", "load.diseases", "load.database", "load.database.serial", "load.snapshot",
+            "addSymptom", "resolve.exact", "resolve.fuzzy", "typeahead.page",
+            "diagnosis.legacy", "diagnosis.bitset", "diagnosis.cached", "diagnosis.ranked", "diagnosis.live",
+            "save.saveToCSV", "save.journal", "cohort.and", "cohort.or");
+
+    private interface Operation {
+        void run(int iteration) throws Exception;
+    }
+
+    private final List<String> filters;
+    private final boolean exact;
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private Object sink;
+
+    private MedicalBenchmark(List<String> filters, boolean exact) {
+        this.filters = filters;
+        this.exact = exact;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (!Files.exists(Path.of(SyntheticData.MARKER_FILE))) {
+            System.err.println("Refusing to run outside a SyntheticData directory: saves would append to real records.");
+            System.exit(2);
+        }
+        if (args.length > 1 && args[0].equals("--fork-child")) {
+            new MedicalBenchmark(List.of(args[1]), true).runAll();
+            return;
+        }
+        printHeader();
+        if (args.length > 0 && args[0].equals("--in-process")) {
+            new MedicalBenchmark(Arrays.asList(args).subList(1, args.length), false).runAll();
+            return;
+        }
+        System.exit(fork(Arrays.asList(args)));
+    }
+
+    private static void printHeader() {
+        System.out.printf("%-22s %10s %7s %12s %10s %10s %10s %10s %12s%n",
+                "benchmark", "ops", "batch", "ops/s", "p50 us", "p90 us", "p99 us", "p99.9 us", "alloc B/op");
+    }
+
+    // Runs each selected benchmark in a fresh JVM with this JVM's options; returns the exit status
+    private static int fork(List<String> filters) throws Exception {
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        int failed = 0;
+        for (String name : BENCHMARKS) {
+            if (!filters.isEmpty() && filters.stream().noneMatch(name::startsWith)) {
+                continue;
+            }
+            List<String> command = new ArrayList<>();
+            command.add(java);
+            command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+            command.addAll(List.of("-cp", System.getProperty("java.class.path"),
+                    MedicalBenchmark.class.getName(), "--fork-child", name));
+            int status = new ProcessBuilder(command).inheritIO().start().waitFor();
+            if (status != 0) {
+                System.err.println(name + ": forked JVM exited with " + status);
+                failed++;
+            }
+        }
+        return failed == 0 ? 0 : 1;
+    }
+
+    private void runAll() throws Exception {
+
+        measure("load.symptoms", 2, 5, i -> check(new MedicalDataBase("B", "Bench").loadSymptoms()));
+        measure("load.diseases", 2, 5, i -> check(new MedicalDataBase("B", "Bench").loadDiseases()));
+        measure("load.database", 1, 3, i -> check(new MedicalDataBase("B", "Bench").loadDatabase()));
+        measure("load.database.serial", 1, 3, i -> new DatabaseFileParser().parse(Path.of("medicalDatabase.csv"),
+                new HashMap<>(), new HashMap<>()));
+        check(new KnowledgeBaseManager().compileSnapshot());
+        measure("load.snapshot", 2, 5, i -> check(new KnowledgeBaseManager().load()));
+
+        MedicalDataBase db = new MedicalDataBase("B1", "Bench");
+        check(db.loadSymptoms());
+        check(db.loadDiseases());
+        check(db.loadDatabase());
+        KnowledgeBaseManager manager = new KnowledgeBaseManager();
+        check(manager.load());
+        KnowledgeBase kb = manager.current();
+        DiagnosisEngine engine = kb.getEngine();
+
+        List<List<String>> queries = queries(db, new Random(7));
+        int[][] queryIds = new int[QUERIES][];
+        for (int i = 0; i < QUERIES; i++) {
+            queryIds[i] = engine.symptomIds(queries.get(i));
+        }
+
+        measure("addSymptom", 50_000, 500_000, i -> {
+            db.clearSymptoms();
+            db.addSymptom(queries.get(i % QUERIES).get(0));
+        });
+        // Exact names, then the same names with one character changed
+        SymptomResolver resolver = kb.getResolver();
+        String[] misspelled = new String[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            String symptom = queries.get(i).get(0);
+            int at = symptom.length() / 2;
+            misspelled[i] = symptom.substring(0, at) + (symptom.charAt(at) == 'x' ? 'y' : 'x') + symptom.substring(at + 1);
+        }
+        measure("resolve.exact", 50_000, 500_000, i -> consume(resolver.resolve(queries.get(i % QUERIES).get(0))));
+        measure("resolve.fuzzy", 2_000, 20_000, i -> consume(resolver.resolve(misspelled[i % QUERIES])));
+
+        // Prefix range plus one page of names, as the symptom picker does per keystroke
+        SymptomPrefixIndex prefixIndex = kb.getPrefixIndex();
+        String[] page = new String[100];
+        measure("typeahead.page", 50_000, 500_000, i -> {
+            String symptom = queries.get(i % QUERIES).get(0);
+            String prefix = symptom.substring(0, Math.min(symptom.length(), 1 + i % 4));
+            int from = prefixIndex.from(prefix);
+            int to = Math.min(prefixIndex.to(prefix), from + page.length);
+            for (int j = from; j < to; j++) {
+                page[j - from] = prefixIndex.name(j);
+            }
+            consume(page);
+        });
+
+        measure("diagnosis.legacy", 5_000, 50_000, i -> {
+            db.clearSymptoms();
+            for (String symptom : queries.get(i % QUERIES)) {
+                db.addSymptom(symptom);
+            }
+            consume(db.diagnosis());
+        });
+        measure("diagnosis.bitset", 50_000, 500_000, i -> consume(engine.diagnosis(queryIds[i % QUERIES])));
+        measure("diagnosis.cached", 50_000, 500_000, i -> consume(kb.diagnosis(queries.get(i % QUERIES))));
+        measure("diagnosis.ranked", 50_000, 500_000,
+                i -> consume(engine.rankedDiagnosis(queryIds[i % QUERIES], 10)));
+
+        // One symptom toggled in and out on top of LIVE_SELECTED others, as in the symptom picker
+        LiveDiagnosis live = new LiveDiagnosis(engine);
+        Random random = new Random(13);
+        for (int i = 0; i < Math.min(LIVE_SELECTED, engine.symptomCount() / 2); i++) {
+            live.select(random.nextInt(engine.symptomCount()));
+        }
+        int[] toggled = new int[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            do {
+                toggled[i] = random.nextInt(engine.symptomCount());
+            } while (live.isSelected(toggled[i]));
+        }
+        measure("diagnosis.live", 50_000, 500_000, i -> {
+            int symptom = toggled[(i >>> 1) % QUERIES];
+            if ((i & 1) == 0) {
+                live.select(symptom);
+            } else {
+                live.deselect(symptom);
+            }
+            String[] exact = live.diagnosis();
+            consume(exact.length == 0 ? live.rankedDiagnosis(10) : exact);
+        });
+
+        // Without a batch window, so a single saver is not held back waiting for company
+        try (RecordJournal journal = new RecordJournal(new EncounterLog(Path.of(EncounterLog.DIRECTORY)),
+                RecordJournal.DEFAULT_BATCH_SIZE, 0, false)) {
+            measure("save.saveToCSV", 200, 2_000, i -> check(db.saveToCSV(journal)));
+            String[] diagnoses = db.diagnosis();
+            List<String> symptoms = queries.get(0);
+            measure("save.journal", 200, 20_000, i -> journal.append(
+                    MedicalDataBase.formatRecord("B" + i, "Bench", symptoms, diagnoses, Instant.now())).join());
+        }
+
+        // Over whatever the directory's encounter log holds, including the records saved above
+        try (CohortIndex cohorts = new CohortIndex(new EncounterLog(Path.of(EncounterLog.DIRECTORY)))) {
+            measure("cohort.and", 100, 2_000, i -> consume(cohorts.query(queries.get(i % QUERIES), List.of(), 20)));
+            measure("cohort.or", 100, 2_000, i -> consume(cohorts.query(List.of(), queries.get(i % QUERIES), 20)));
+        }
+    }
+
+    // Random 1-3 symptom selections drawn from real mappings, so most have diagnoses
+    static List<List<String>> queries(MedicalDataBase db, Random random) {
+        List<String> symptoms = new ArrayList<>(db.getValidSymptoms());
+        symptoms.sort(null);
+        List<List<String>> queries = new ArrayList<>(QUERIES);
+        for (int i = 0; i < QUERIES; i++) {
+            int base = random.nextInt(symptoms.size());
+            List<String> query = new ArrayList<>();
+            int count = 1 + random.nextInt(3);
+            for (int s = 0; s < count; s++) {
+                String symptom = symptoms.get((base + random.nextInt(4)) % symptoms.size());
+                if (!query.contains(symptom)) {
+                    query.add(symptom);
+                }
+            }
+            queries.add(query);
+        }
+        return queries;
+    }
+
+    // Warms up for WARMUP_NANOS and at least minWarmup operations, then times `operations`
+    private void measure(String name, int minWarmup, int operations, Operation operation) throws Exception {
+        if (!BENCHMARKS.contains(name)) {
+            throw new IllegalStateException(name + " is missing from BENCHMARKS");
+        }
+        if (!filters.isEmpty() && filters.stream().noneMatch(exact ? name::equals : name::startsWith)) {
+            return;
+        }
+        // The batch is sized from the second half of the warmup, which runs closest to steady state
+        long warmupStart = System.nanoTime();
+        long halfway = warmupStart + WARMUP_NANOS / 2;
+        long timedStart = 0;
+        int timedFrom = -1;
+        int warmup = 0;
+        while (warmup < minWarmup || System.nanoTime() - warmupStart < WARMUP_NANOS) {
+            if (timedFrom < 0 && System.nanoTime() - halfway >= 0) {
+                timedFrom = warmup;
+                timedStart = System.nanoTime();
+            }
+            operation.run(warmup++);
+        }
+        int timedWarmup = timedFrom < 0 ? 0 : warmup - timedFrom;
+        long warmupNanos = Math.max(1, System.nanoTime() - timedStart);
+        int batch = timedWarmup == 0 ? 1
+                : (int) Math.max(1, Math.min(operations, BATCH_NANOS * timedWarmup / warmupNanos));
+        int batches = Math.max(1, operations / batch);
+        operations = batches * batch;
+
+        long[] latencies = new long[batches];
+        Map<Long, Long> allocatedBefore = allocatedByThread();
+        long start = System.nanoTime();
+        int i = 0;
+        for (int b = 0; b < batches; b++) {
+            long batchStart = System.nanoTime();
+            for (int end = i + batch; i < end; i++) {
+                operation.run(i);
+            }
+            latencies[b] = (System.nanoTime() - batchStart) / batch;
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = 0;
+        for (Map.Entry<Long, Long> after : allocatedByThread().entrySet()) {
+            allocated += after.getValue() - allocatedBefore.getOrDefault(after.getKey(), 0L);
+        }
+
+        Arrays.sort(latencies);
+        System.out.printf("%-22s %10d %7d %12.0f %10.2f %10.2f %10.2f %10.2f %12d%n",
+                name, operations, batch, operations / (elapsed / 1e9),
+                percentile(latencies, 0.50), percentile(latencies, 0.90),
+                percentile(latencies, 0.99), percentile(latencies, 0.999),
+                allocated / operations);
+    }
+
+    // Bytes allocated so far by each live platform thread. A thread that starts and ends within
+    // one measurement is missed, but the pools and the journal writer outlive the measurement.
+    private Map<Long, Long> allocatedByThread() {
+        long[] ids = threads.getAllThreadIds();
+        long[] bytes = threads.getThreadAllocatedBytes(ids);
+        Map<Long, Long> allocated = new HashMap<>(ids.length * 2);
+        for (int i = 0; i < ids.length; i++) {
+            if (bytes[i] >= 0) {
+                allocated.put(ids[i], bytes[i]);
+            }
+        }
+        return allocated;
+    }
+
+    // Keeps a measured result reachable from a field, so computing it cannot be optimized away
+    private void consume(Object result) {
+        sink = result;
+    }
+
+    private static double percentile(long[] sorted, double fraction) {
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(fraction * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1e3;
+    }
+
+    private static void check(String error) {
+        if (error != null) {
+            throw new IllegalStateException(error);
+        }
+    }
+}
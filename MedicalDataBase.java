@@ -0,0 +1,371 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+
+class MedicalDataBase {
+    static final String SYMPTOMS_FILE = "symptoms.txt";
+    static final String DISEASES_FILE = "disease.txt";
+    static final String DATABASE_FILE = "medicalDatabase.csv";
+    static final String SYNONYMS_FILE = "synonyms.txt";
+
+    private Map<String, Set<String>> symptomToDiseases;
+    private Map<String, Set<String>> diseaseToSymptoms;
+    private java.util.List<String> patientSymptoms; // Explicitly use java.util.List
+    private Set<String> validSymptoms;
+    private Set<String> validDiseases;
+    private Map<String, String> synonyms;
+    private String patientId;
+    private String patientName;
+
+    public MedicalDataBase(String patientId, String patientName) {
+        this.patientId = patientId;
+        this.patientName = patientName;
+        this.symptomToDiseases = new HashMap<>();
+        this.diseaseToSymptoms = new HashMap<>();
+        this.patientSymptoms = new ArrayList<>();
+        this.validSymptoms = new HashSet<>();
+        this.validDiseases = new HashSet<>();
+        this.synonyms = new HashMap<>();
+    }
+
+    public String initializeFiles() {
+        try {
+            // Create symptoms.txt with 30 symptoms if it doesn't exist
+            File symptomsFile = new File("symptoms.txt");
+            if (!symptomsFile.exists()) {
+                try (BufferedWriter writer = new BufferedWriter(new FileWriter(symptomsFile))) {
+                    String[] symptoms = {
+                        "fever", "cough", "fatigue", "headache", "sore throat",
+                        "nausea", "vomiting", "diarrhea", "shortness of breath", "chest pain",
+                        "joint pain", "muscle pain", "rash", "chills", "dizziness",
+                        "abdominal pain", "loss of appetite", "sweating", "swollen lymph nodes", "weight loss",
+                        "sneezing", "runny nose", "back pain", "itchy eyes", "ear pain",
+                        "difficulty swallowing", "dry mouth", "numbness", "blurred vision", "constipation"
+                    };
+                    for (String symptom : symptoms) {
+                        writer.write(symptom + "\n");
+                    }
+                }
+            }
+
+            // Create disease.txt with 30 diseases if it doesn't exist
+            File diseaseFile = new File("disease.txt");
+            if (!diseaseFile.exists()) {
+                try (BufferedWriter writer = new BufferedWriter(new FileWriter(diseaseFile))) {
+                    String[] diseases = {
+                        "flu", "common cold", "migraine", "pneumonia", "bronchitis",
+                        "gastroenteritis", "appendicitis", "arthritis", "dengue fever", "malaria",
+                        "typhoid fever", "strep throat", "sinusitis", "tonsillitis", "urinary tract infection",
+                        "mononucleosis", "hepatitis", "meningitis", "lyme disease", "chronic fatigue syndrome",
+                        "asthma", "conjunctivitis", "ear infection", "gastritis", "hypertension",
+                        "diabetes", "anemia", "eczema", "sprain", "kidney stones"
+                    };
+                    for (String disease : diseases) {
+                        writer.write(disease + "\n");
+                    }
+                }
+            }
+
+            // Create medicalDatabase.csv with default mappings if it doesn't exist
+            File csvFile = new File("medicalDatabase.csv");
+            if (!csvFile.exists()) {
+                try (BufferedWriter writer = new BufferedWriter(new FileWriter(csvFile))) {
+                    writer.write("patient id|patient name|symptoms list|possible disease\n");
+                    String[] mappings = {
+                        "P000|Setup|fever,cough,fatigue|flu",
+                        "P000|Setup|fever,cough,sore throat,sneezing,runny nose|common cold",
+                        "P000|Setup|headache,dizziness,blurred vision|migraine",
+                        "P000|Setup|cough,shortness of breath,chest pain|pneumonia",
+                        "P000|Setup|cough,shortness of breath|bronchitis",
+                        "P000|Setup|nausea,vomiting,diarrhea|gastroenteritis",
+                        "P000|Setup|abdominal pain,fever|appendicitis",
+                        "P000|Setup|joint pain,muscle pain|arthritis",
+                        "P000|Setup|fever,rash,chills|dengue fever",
+                        "P000|Setup|fever,chills,sweating|malaria",
+                        "P000|Setup|fever,abdominal pain,weight loss|typhoid fever",
+                        "P000|Setup|sore throat,swollen lymph nodes|strep throat",
+                        "P000|Setup|headache,fever,runny nose|sinusitis",
+                        "P000|Setup|sore throat,fever,difficulty swallowing|tonsillitis",
+                        "P000|Setup|abdominal pain,diarrhea,constipation|urinary tract infection",
+                        "P000|Setup|fatigue,swollen lymph nodes|mononucleosis",
+                        "P000|Setup|nausea,vomiting,abdominal pain|hepatitis",
+                        "P000|Setup|fever,headache,dizziness|meningitis",
+                        "P000|Setup|rash,joint pain|lyme disease",
+                        "P000|Setup|fatigue,weight loss|chronic fatigue syndrome",
+                        "P000|Setup|shortness of breath,cough|asthma",
+                        "P000|Setup|itchy eyes,runny nose|conjunctivitis",
+                        "P000|Setup|ear pain,fever|ear infection",
+                        "P000|Setup|abdominal pain,nausea|gastritis",
+                        "P000|Setup|dizziness,chest pain|hypertension",
+                        "P000|Setup|fatigue,weight loss|diabetes",
+                        "P000|Setup|fatigue,numbness|anemia",
+                        "P000|Setup|rash,itching|eczema",
+                        "P000|Setup|joint pain,back pain|sprain",
+                        "P000|Setup|abdominal pain,difficulty urinating|kidney stones"
+                    };
+                    for (String mapping : mappings) {
+                        writer.write(mapping + "\n");
+                    }
+                }
+            }
+
+            // Create synonyms.txt with common lay terms and misspellings if it doesn't exist
+            File synonymsFile = new File(SYNONYMS_FILE);
+            if (!synonymsFile.exists()) {
+                try (BufferedWriter writer = new BufferedWriter(new FileWriter(synonymsFile))) {
+                    String[] synonyms = {
+                        "temp|fever", "temperature|fever", "high temperature|fever", "pyrexia|fever",
+                        "coughing|cough", "tired|fatigue", "tiredness|fatigue", "exhaustion|fatigue",
+                        "headaches|headache", "head ache|headache", "nauseous|nausea", "throwing up|vomiting",
+                        "loose stools|diarrhea", "diarrhoea|diarrhea", "breathlessness|shortness of breath",
+                        "short of breath|shortness of breath", "difficulty breathing|shortness of breath",
+                        "chest tightness|chest pain", "arthralgia|joint pain", "body aches|muscle pain",
+                        "myalgia|muscle pain", "shivering|chills", "lightheadedness|dizziness",
+                        "vertigo|dizziness", "stomach ache|abdominal pain", "stomachache|abdominal pain",
+                        "belly pain|abdominal pain", "no appetite|loss of appetite", "night sweats|sweating",
+                        "swollen glands|swollen lymph nodes", "rhinorrhea|runny nose", "earache|ear pain",
+                        "dysphagia|difficulty swallowing", "xerostomia|dry mouth", "tingling|numbness",
+                        "pins and needles|numbness", "blurry vision|blurred vision"
+                    };
+                    for (String synonym : synonyms) {
+                        writer.write(synonym + "\n");
+                    }
+                }
+            }
+            return null;
+        } catch (IOException e) {
+            return "Error initializing files: " + e.getMessage();
+        }
+    }
+
+    public String loadSymptoms() {
+        try {
+            File symptomsFile = new File("symptoms.txt");
+            if (!symptomsFile.exists()) {
+                return "symptoms.txt not found. Please ensure the file exists.";
+            }
+            try (BufferedReader reader = new BufferedReader(new FileReader(symptomsFile))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String symptom = line.trim().toLowerCase();
+                    if (!symptom.isEmpty()) {
+                        validSymptoms.add(symptom);
+                    }
+                }
+                if (validSymptoms.isEmpty()) {
+                    return "Warning: symptoms.txt is empty. Please add symptoms to the file.";
+                }
+            }
+            return null;
+        } catch (IOException e) {
+            return "Error reading symptoms.txt: " + e.getMessage();
+        }
+    }
+
+    public String loadDiseases() {
+        try {
+            File diseaseFile = new File("disease.txt");
+            if (!diseaseFile.exists()) {
+                return "disease.txt not found. Please ensure the file exists.";
+            }
+            try (BufferedReader reader = new BufferedReader(new FileReader(diseaseFile))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String disease = line.trim().toLowerCase();
+                    if (!disease.isEmpty()) {
+                        validDiseases.add(disease);
+                    }
+                }
+                if (validDiseases.isEmpty()) {
+                    return "Warning: disease.txt is empty. Please add diseases to the file.";
+                }
+            }
+            return null;
+        } catch (IOException e) {
+            return "Error reading disease.txt: " + e.getMessage();
+        }
+    }
+
+    // Optional alias|symptom lines for SymptomResolver; lines without a '|' are ignored
+    public String loadSynonyms() {
+        File synonymsFile = new File(SYNONYMS_FILE);
+        if (!synonymsFile.exists()) {
+            return null;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(synonymsFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int bar = line.indexOf('|');
+                if (bar < 0) {
+                    continue;
+                }
+                String alias = line.substring(0, bar).trim().toLowerCase();
+                String symptom = line.substring(bar + 1).trim().toLowerCase();
+                if (!alias.isEmpty() && !symptom.isEmpty()) {
+                    synonyms.put(alias, symptom);
+                }
+            }
+            return null;
+        } catch (IOException e) {
+            return "Error reading " + SYNONYMS_FILE + ": " + e.getMessage();
+        }
+    }
+
+    Map<String, String> getSynonyms() {
+        return Collections.unmodifiableMap(synonyms);
+    }
+
+    public String loadDatabase() {
+        try {
+            File file = new File("medicalDatabase.csv");
+            if (!file.exists()) {
+                return null;
+            }
+
+            DatabaseFileParser.parseParallel(file.toPath(), symptomToDiseases, diseaseToSymptoms);
+            return null;
+        } catch (IOException e) {
+            return "Error reading medicalDatabase.csv: " + e.getMessage();
+        }
+    }
+
+    public void addSymptom(String symptom) throws UnrecognizedSymptomException {
+        String normalizedSymptom = symptom.trim().toLowerCase();
+        if (!validSymptoms.contains(normalizedSymptom)) {
+            throw new UnrecognizedSymptomException("Symptom '" + symptom + "' not recognized");
+        }
+        if (!patientSymptoms.contains(normalizedSymptom)) {
+            patientSymptoms.add(normalizedSymptom);
+        }
+    }
+
+    public String[] diagnosis() throws UnrecognizedDiseaseException {
+        return diagnose(symptomToDiseases, validDiseases, patientSymptoms);
+    }
+
+    // Shared by the legacy per-patient path and the immutable KnowledgeBase snapshot
+    static String[] diagnose(Map<String, Set<String>> symptomToDiseases, Set<String> validDiseases,
+                             java.util.List<String> patientSymptoms) throws UnrecognizedDiseaseException {
+        Set<String> possibleDiseases = new HashSet<>();
+        boolean firstSymptom = true;
+
+        for (String symptom : patientSymptoms) {
+            Set<String> diseases = symptomToDiseases.getOrDefault(symptom, new HashSet<>());
+            for (String disease : diseases) {
+                if (!validDiseases.contains(disease)) {
+                    throw new UnrecognizedDiseaseException("Disease '" + disease + "' not recognized");
+                }
+            }
+            if (firstSymptom) {
+                possibleDiseases.addAll(diseases);
+                firstSymptom = false;
+            } else {
+                possibleDiseases.retainAll(diseases);
+            }
+        }
+
+        if (patientSymptoms.isEmpty()) {
+            return new String[0];
+        }
+
+        return possibleDiseases.toArray(new String[0]);
+    }
+
+    // Encounters go to the EncounterLog; medicalDatabase.csv only holds the curated mappings
+    public String saveToCSV() {
+        try {
+            return saveToCSV(RecordJournal.shared());
+        } catch (IOException e) {
+            Metrics.SAVE_ERRORS.increment();
+            return "Error opening the encounter log: " + e.getMessage();
+        }
+    }
+
+    // Appends through the journal's writer, like every other save, and waits until it is written
+    public String saveToCSV(RecordJournal journal) {
+        long start = System.nanoTime();
+        String error = null;
+        try {
+            journal.append(formatRecord(patientId, patientName, patientSymptoms, diagnosis(), Instant.now())).join();
+        } catch (UnrecognizedDiseaseException | IllegalArgumentException e) {
+            error = "Error writing to the encounter log: " + e.getMessage();
+        } catch (CompletionException e) {
+            error = "Error writing to the encounter log: " + e.getCause().getMessage();
+        }
+        if (error != null) {
+            Metrics.SAVE_ERRORS.increment();
+        }
+        Metrics.SAVE_TO_CSV.recordSince(start);
+        return error;
+    }
+
+    // Returns why the ID or name cannot be stored in a record, or null if it can. A '|' or a
+    // line break would split the record into other fields or other lines of the log.
+    static String recordFieldError(String patientId, String patientName) {
+        if (!isRecordField(patientId)) {
+            return "Patient ID must not contain '|' or control characters";
+        }
+        if (!isRecordField(patientName)) {
+            return "Patient Name must not contain '|' or control characters";
+        }
+        return null;
+    }
+
+    private static boolean isRecordField(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '|' || Character.isISOControl(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // One record line in the medicalDatabase.csv layout, without the trailing newline.
+    // Throws IllegalArgumentException for an ID or name rejected by recordFieldError.
+    static String formatRecord(String patientId, String patientName, java.util.List<String> patientSymptoms,
+                               String[] diagnoses) {
+        String error = recordFieldError(patientId, patientName);
+        if (error != null) {
+            throw new IllegalArgumentException(error);
+        }
+        String symptoms = String.join(",", patientSymptoms);
+        String diseases = String.join(",", diagnoses);
+        return String.format("%s|%s|%s|%s", patientId, patientName, symptoms, diseases);
+    }
+
+    // One EncounterLog line: the record plus when it was recorded
+    static String formatRecord(String patientId, String patientName, java.util.List<String> patientSymptoms,
+                               String[] diagnoses, Instant recordedAt) {
+        return formatRecord(patientId, patientName, patientSymptoms, diagnoses) + "|" + recordedAt;
+    }
+
+    // Read-only views; share a KnowledgeBase snapshot rather than this loader across threads
+    public Set<String> getValidSymptoms() {
+        return Collections.unmodifiableSet(validSymptoms);
+    }
+
+    public Set<String> getValidDiseases() {
+        return Collections.unmodifiableSet(validDiseases);
+    }
+
+    public void clearSymptoms() {
+        patientSymptoms.clear();
+    }
+
+    // Freezes the loaded maps into a snapshot that can be shared across patients
+    KnowledgeBase snapshot() {
+        return new KnowledgeBase(validSymptoms, validDiseases, symptomToDiseases, diseaseToSymptoms, synonyms);
+    }
+}
@@ -0,0 +1,193 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+// Process-wide latency histograms and counters for the hot paths, readable as a plain-text
+// dump or over JMX as MedicalAssistant:type=Metrics. Each timer shows up as
+// <name>.count, .meanMicros, .p50Micros, .p99Micros and .p999Micros attributes.
+final class Metrics implements DynamicMBean {
+    static final LatencyHistogram LOAD_SYMPTOMS = new LatencyHistogram("load.symptoms");
+    static final LatencyHistogram LOAD_DISEASES = new LatencyHistogram("load.diseases");
+    static final LatencyHistogram LOAD_DATABASE = new LatencyHistogram("load.database");
+    static final LatencyHistogram LOAD_SNAPSHOT = new LatencyHistogram("load.snapshot");
+    static final LatencyHistogram RELOAD = new LatencyHistogram("reload");
+    static final LatencyHistogram DIAGNOSIS = new LatencyHistogram("diagnosis");
+    static final LatencyHistogram RANKED_DIAGNOSIS = new LatencyHistogram("diagnosis.ranked");
+    static final LatencyHistogram LIVE_DIAGNOSIS = new LatencyHistogram("diagnosis.live");
+    static final LatencyHistogram SAVE_TO_CSV = new LatencyHistogram("saveToCSV");
+    static final LatencyHistogram JOURNAL_WRITE = new LatencyHistogram("journal.batchWrite");
+    static final LatencyHistogram COMPACTION = new LatencyHistogram("encounters.compaction");
+    static final LatencyHistogram COHORT_QUERY = new LatencyHistogram("cohort.query");
+
+    static final LongAdder RELOADS = new LongAdder();
+    static final LongAdder RELOAD_FAILURES = new LongAdder();
+    static final LongAdder DIAGNOSIS_ERRORS = new LongAdder();
+    static final LongAdder SAVE_ERRORS = new LongAdder();
+    static final LongAdder JOURNAL_RECORDS = new LongAdder();
+    static final LongAdder JOURNAL_BATCHES = new LongAdder();
+    static final LongAdder SEGMENTS_SEALED = new LongAdder();
+    static final LongAdder DUPLICATES_REMOVED = new LongAdder();
+    static final LongAdder SYMPTOMS_RESOLVED = new LongAdder();
+
+    private static final LatencyHistogram[] TIMERS = {
+        LOAD_SYMPTOMS, LOAD_DISEASES, LOAD_DATABASE, LOAD_SNAPSHOT, RELOAD,
+        DIAGNOSIS, RANKED_DIAGNOSIS, LIVE_DIAGNOSIS, SAVE_TO_CSV, JOURNAL_WRITE, COMPACTION, COHORT_QUERY
+    };
+
+    private static volatile KnowledgeBase knowledgeBase;
+    private static final Metrics INSTANCE = new Metrics();
+    private static boolean registered;
+
+    private final Map<String, LongSupplier> counters = new LinkedHashMap<>();
+
+    private Metrics() {
+        counters.put("reloads", RELOADS::sum);
+        counters.put("reloadFailures", RELOAD_FAILURES::sum);
+        counters.put("diagnosisErrors", DIAGNOSIS_ERRORS::sum);
+        counters.put("saveErrors", SAVE_ERRORS::sum);
+        counters.put("journal.records", JOURNAL_RECORDS::sum);
+        counters.put("journal.batches", JOURNAL_BATCHES::sum);
+        counters.put("encounters.sealed", SEGMENTS_SEALED::sum);
+        counters.put("encounters.deduplicated", DUPLICATES_REMOVED::sum);
+        counters.put("symptoms.resolved", SYMPTOMS_RESOLVED::sum);
+        counters.put("cache.hits", DiagnosisCache::hitCount);
+        counters.put("cache.misses", DiagnosisCache::missCount);
+        counters.put("cache.evictions", DiagnosisCache::evictionCount);
+        counters.put("cache.invalidations", DiagnosisCache::invalidationCount);
+        counters.put("cache.size", () -> knowledgeBase == null ? 0 : knowledgeBase.getCache().size());
+        counters.put("knowledgeBase.symptoms", () -> knowledgeBase == null ? 0 : knowledgeBase.getEngine().symptomCount());
+        counters.put("knowledgeBase.diseases", () -> knowledgeBase == null ? 0 : knowledgeBase.getEngine().diseaseCount());
+        counters.put("knowledgeBase.postings", () -> knowledgeBase == null ? 0 : knowledgeBase.getEngine().postingIds().length);
+    }
+
+    // Called by KnowledgeBaseManager whenever a snapshot is swapped in
+    static void setKnowledgeBase(KnowledgeBase current) {
+        knowledgeBase = current;
+    }
+
+    // Registers the MBean once; returns an error message or null
+    static synchronized String registerMBean() {
+        if (registered) {
+            return null;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE,
+                    new ObjectName("MedicalAssistant:type=Metrics"));
+            registered = true;
+            return null;
+        } catch (JMException e) {
+            return "Error registering metrics MBean: " + e.getMessage();
+        }
+    }
+
+    static String dump() {
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("%-22s %10s %10s %10s %10s %10s%n",
+                "timer", "count", "mean us", "p50 us", "p99 us", "p99.9 us"));
+        for (LatencyHistogram timer : TIMERS) {
+            out.append(String.format("%-22s %10d %10.1f %10.1f %10.1f %10.1f%n", timer.getName(), timer.getCount(),
+                    timer.getMeanMicros(), timer.getPercentileMicros(0.5), timer.getPercentileMicros(0.99),
+                    timer.getPercentileMicros(0.999)));
+        }
+        for (Map.Entry<String, LongSupplier> counter : INSTANCE.counters.entrySet()) {
+            out.append(String.format("%-22s %10d%n", counter.getKey(), counter.getValue().getAsLong()));
+        }
+        return out.toString();
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        LongSupplier counter = counters.get(attribute);
+        if (counter != null) {
+            return counter.getAsLong();
+        }
+        int dot = attribute.lastIndexOf('.');
+        if (dot > 0) {
+            String name = attribute.substring(0, dot);
+            for (LatencyHistogram timer : TIMERS) {
+                if (timer.getName().equals(name)) {
+                    switch (attribute.substring(dot + 1)) {
+                        case "count":
+                            return timer.getCount();
+                        case "meanMicros":
+                            return timer.getMeanMicros();
+                        case "p50Micros":
+                            return timer.getPercentileMicros(0.5);
+                        case "p99Micros":
+                            return timer.getPercentileMicros(0.99);
+                        case "p999Micros":
+                            return timer.getPercentileMicros(0.999);
+                        default:
+                            break;
+                    }
+                }
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException e) {
+                // Unknown attributes are left out, as the DynamicMBean contract allows
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    // "dump" is the only operation; anything else is reported as the DynamicMBean contract asks
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        if (actionName.equals("dump") && (params == null || params.length == 0)) {
+            return dump();
+        }
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (LatencyHistogram timer : TIMERS) {
+            for (String suffix : new String[] {"count", "meanMicros", "p50Micros", "p99Micros", "p999Micros"}) {
+                String type = suffix.equals("count") ? "long" : "double";
+                attributes.add(new MBeanAttributeInfo(timer.getName() + "." + suffix, type,
+                        timer.getName() + " " + suffix, true, false, false));
+            }
+        }
+        for (String counter : counters.keySet()) {
+            attributes.add(new MBeanAttributeInfo(counter, "long", counter, true, false, false));
+        }
+        MBeanOperationInfo dump = new MBeanOperationInfo("dump", "Plain-text dump of all metrics",
+                null, "java.lang.String", MBeanOperationInfo.INFO);
+        return new MBeanInfo(Metrics.class.getName(), "Medical Assistant hot-path metrics",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[] {dump}, null);
+    }
+}
@@ -0,0 +1,478 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Persistent index from patient id to the positions of that patient's records in the
+// EncounterLog, so a history is a few positioned reads instead of a log scan. Each segment
+// has its own index file next to it, holding (id, offset, length) entries:
+//
+//   encounters-000001.idx          append-only, in log order, for an open segment
+//   encounters-000001.sealed.idx   sorted by id, with a fence table; written once sealed
+//
+// Sealed indexes stay on disk: only every FENCE_INTERVAL-th id and its file position are
+// kept in memory, and a lookup reads the few entries between two fences. Open segments (the
+// active one and any waiting for compaction) are indexed in memory, so memory is bounded by
+// the segment size and the number of sealed segments, not by the number of records.
+//
+// On open, open segments are indexed from their last indexed record onwards, and sealed
+// segments whose index is missing or stale are re-indexed from the sealed file.
+final class PatientHistoryIndex implements RecordJournal.Listener, AutoCloseable {
+    private static final String OPEN_SUFFIX = ".idx";
+    private static final String SEALED_SUFFIX = ".sealed.idx";
+    private static final int SEALED_MAGIC = 0x50484958; // "PHIX"
+    // magic, sealed file size, entry count
+    private static final int SEALED_HEADER_BYTES = 4 + 8 + 4;
+    private static final int FENCE_INTERVAL = 64;
+
+    // Log positions and lengths of one patient's records
+    private static final class Entries {
+        long[] positions = new long[2];
+        int[] lengths = new int[2];
+        int size;
+
+        void add(long position, int length) {
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, size * 2);
+                lengths = Arrays.copyOf(lengths, size * 2);
+            }
+            positions[size] = position;
+            lengths[size] = length;
+            size++;
+        }
+
+        // Entries are gathered segment by segment; put them in log order
+        void sort() {
+            for (int i = 1; i < size; i++) {
+                long position = positions[i];
+                int length = lengths[i];
+                int j = i - 1;
+                while (j >= 0 && positions[j] > position) {
+                    positions[j + 1] = positions[j];
+                    lengths[j + 1] = lengths[j];
+                    j--;
+                }
+                positions[j + 1] = position;
+                lengths[j + 1] = length;
+            }
+        }
+    }
+
+    // A sealed segment's index file and its fence table: the id and file position of every
+    // FENCE_INTERVAL-th entry, first entry included
+    private static final class SealedIndex {
+        final FileChannel file;
+        final String[] fenceIds;
+        final long[] fencePositions;
+        final long entriesEnd;
+
+        SealedIndex(FileChannel file, String[] fenceIds, long[] fencePositions, long entriesEnd) {
+            this.file = file;
+            this.fenceIds = fenceIds;
+            this.fencePositions = fencePositions;
+            this.entriesEnd = entriesEnd;
+        }
+
+        // Adds the patient's entries, as log positions, to found
+        void lookup(int segment, String patientId, Entries found) throws IOException {
+            // Entries of the id lie between the last fence below it and the first fence above it
+            int from = lowerBound(fenceIds, patientId);
+            int to = upperBound(fenceIds, patientId);
+            if (to == 0) {
+                return;
+            }
+            long start = fencePositions[Math.max(from - 1, 0)];
+            long end = to < fenceIds.length ? fencePositions[to] : entriesEnd;
+            ByteBuffer buffer = ByteBuffer.allocate((int) (end - start));
+            while (buffer.hasRemaining() && file.read(buffer, start + buffer.position()) >= 0) {
+                // positioned reads until the range is complete
+            }
+            buffer.flip();
+            for (RecordJournal.WrittenRecord entry : readEntries(buffer)) {
+                if (entry.line().equals(patientId)) {
+                    found.add(EncounterLog.position(segment, entry.position()), entry.length());
+                }
+            }
+        }
+
+        private static int lowerBound(String[] ids, String id) {
+            int low = 0;
+            int high = ids.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (ids[mid].compareTo(id) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        private static int upperBound(String[] ids, String id) {
+            int low = 0;
+            int high = ids.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (ids[mid].compareTo(id) <= 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    private final EncounterLog log;
+    private final TreeMap<Integer, SealedIndex> sealed = new TreeMap<>();
+    // Segments whose records are still in the open file, which stays until segmentSealed has
+    // re-indexed the segment from its sealed file
+    private final TreeMap<Integer, Map<String, Entries>> open = new TreeMap<>();
+    private final Map<Integer, FileChannel> readers = new HashMap<>();
+    private FileChannel appendIndex;
+    private int appendSegment = -1;
+
+    PatientHistoryIndex(EncounterLog log) throws IOException {
+        this.log = log;
+        try {
+            for (int segment : log.segments()) {
+                if (log.isSealed(segment)) {
+                    openSealed(segment);
+                } else {
+                    openUnsealed(segment);
+                }
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private synchronized void openSealed(int segment) throws IOException {
+        SealedIndex index = readSealedIndex(segment);
+        if (index == null) {
+            writeSealedIndex(segment);
+            index = readSealedIndex(segment);
+            if (index == null) {
+                throw new IOException("Unreadable index for sealed segment " + segment);
+            }
+        }
+        sealed.put(segment, index);
+        Files.deleteIfExists(log.segmentPath(segment, OPEN_SUFFIX));
+    }
+
+    private synchronized void openUnsealed(int segment) throws IOException {
+        Path indexFile = log.segmentPath(segment, OPEN_SUFFIX);
+        List<RecordJournal.WrittenRecord> indexed = List.of();
+        long covered = 0;
+        if (Files.exists(indexFile)) {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(indexFile));
+            indexed = readEntries(buffer);
+            for (RecordJournal.WrittenRecord record : indexed) {
+                covered = Math.max(covered, record.position() + record.length());
+            }
+            if (covered > Files.size(log.openFile(segment))) {
+                // The segment was replaced or truncated; start over
+                indexed = List.of();
+                covered = 0;
+            }
+            try (FileChannel index = FileChannel.open(indexFile, StandardOpenOption.WRITE)) {
+                // Also drops a partial entry left by a crash mid-append
+                index.truncate(indexed.isEmpty() ? 0 : buffer.position());
+            }
+        }
+        Map<String, Entries> entries = open.computeIfAbsent(segment, k -> new HashMap<>());
+        for (RecordJournal.WrittenRecord record : indexed) {
+            add(entries, record.line(), EncounterLog.position(segment, record.position()), record.length());
+        }
+        try (FileChannel records = FileChannel.open(log.openFile(segment), StandardOpenOption.READ)) {
+            if (covered < records.size()) {
+                RecordJournal.replay(records, covered,
+                        written -> recordsWritten(EncounterLog.relocate(segment, written)));
+            }
+        }
+    }
+
+    // Entries as records whose line is just the patient id, up to the last complete entry
+    private static List<RecordJournal.WrittenRecord> readEntries(ByteBuffer buffer) {
+        List<RecordJournal.WrittenRecord> read = new ArrayList<>();
+        int complete = buffer.position();
+        while (buffer.remaining() >= 2) {
+            int idLength = buffer.getShort() & 0xffff;
+            if (buffer.remaining() < idLength + 12) {
+                break;
+            }
+            byte[] id = new byte[idLength];
+            buffer.get(id);
+            long offset = buffer.getLong();
+            int length = buffer.getInt();
+            read.add(new RecordJournal.WrittenRecord(new String(id, StandardCharsets.UTF_8), offset, length));
+            complete = buffer.position();
+        }
+        buffer.position(complete);
+        return read;
+    }
+
+    private static void add(Map<String, Entries> entries, String patientId, long position, int length) {
+        entries.computeIfAbsent(patientId, k -> new Entries()).add(position, length);
+    }
+
+    @Override
+    public synchronized void recordsWritten(List<RecordJournal.WrittenRecord> written) {
+        int start = 0;
+        while (start < written.size()) {
+            // A batch never spans a rotation, but replays can cross segments
+            int segment = EncounterLog.segmentOf(written.get(start).position());
+            int end = start;
+            while (end < written.size() && EncounterLog.segmentOf(written.get(end).position()) == segment) {
+                end++;
+            }
+            appendEntries(segment, written.subList(start, end));
+            start = end;
+        }
+    }
+
+    private void appendEntries(int segment, List<RecordJournal.WrittenRecord> written) {
+        Map<String, Entries> entries = open.computeIfAbsent(segment, k -> new HashMap<>());
+        List<byte[]> ids = new ArrayList<>(written.size());
+        int size = 0;
+        for (RecordJournal.WrittenRecord record : written) {
+            String patientId = patientId(record.line());
+            byte[] id = patientId.getBytes(StandardCharsets.UTF_8);
+            ids.add(id);
+            size += 2 + id.length + 12;
+            add(entries, patientId, record.position(), record.length());
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (int i = 0; i < written.size(); i++) {
+            RecordJournal.WrittenRecord record = written.get(i);
+            byte[] id = ids.get(i);
+            buffer.putShort((short) id.length).put(id)
+                    .putLong(EncounterLog.offsetOf(record.position())).putInt(record.length());
+        }
+        buffer.flip();
+        try {
+            if (appendSegment != segment) {
+                closeAppendIndex();
+                appendIndex = FileChannel.open(log.segmentPath(segment, OPEN_SUFFIX), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                appendSegment = segment;
+            }
+            while (buffer.hasRemaining()) {
+                appendIndex.write(buffer);
+            }
+        } catch (IOException e) {
+            // The in-memory index stays correct; the file is caught up again on next open
+            System.err.println("Error writing the history index: " + e.getMessage());
+        }
+    }
+
+    // Re-indexes a segment from its sealed file, where offsets changed wherever duplicates
+    // were dropped, and lets go of its in-memory entries
+    @Override
+    public synchronized void segmentSealed(int segment, List<String> removed) {
+        try {
+            writeSealedIndex(segment);
+            SealedIndex index = readSealedIndex(segment);
+            if (index == null) {
+                throw new IOException("index written but unreadable");
+            }
+            SealedIndex previous = sealed.put(segment, index);
+            if (previous != null) {
+                previous.file.close();
+            }
+            open.remove(segment);
+
+            if (appendSegment == segment) {
+                closeAppendIndex();
+            }
+            Files.deleteIfExists(log.segmentPath(segment, OPEN_SUFFIX));
+            FileChannel reader = readers.remove(segment);
+            if (reader != null) {
+                reader.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error re-indexing sealed segment " + segment + ": " + e.getMessage());
+        }
+    }
+
+    // Scans the sealed file and writes its index: header, entries sorted by id then offset,
+    // the fence table and finally the fence table's position
+    private void writeSealedIndex(int segment) throws IOException {
+        Path sealedFile = log.sealedFile(segment);
+        List<RecordJournal.WrittenRecord> records = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(sealedFile, StandardOpenOption.READ)) {
+            RecordJournal.replay(channel, 0, records::addAll);
+        }
+        int count = records.size();
+        byte[][] ids = new byte[count][];
+        String[] keys = new String[count];
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = patientId(records.get(i).line()).getBytes(StandardCharsets.UTF_8);
+            // Sorted as they read back, so lookups compare the same strings
+            keys[i] = new String(ids[i], StandardCharsets.UTF_8);
+            order[i] = i;
+        }
+        // Stable, so each patient's entries stay in offset order
+        Arrays.sort(order, Comparator.comparing(i -> keys[i]));
+
+        int entryBytes = 0;
+        int fenceBytes = 4;
+        for (int i = 0; i < count; i++) {
+            entryBytes += 2 + ids[order[i]].length + 12;
+            if (i % FENCE_INTERVAL == 0) {
+                fenceBytes += 2 + ids[order[i]].length + 8;
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(SEALED_HEADER_BYTES + entryBytes + fenceBytes + 8);
+        buffer.putInt(SEALED_MAGIC).putLong(Files.size(sealedFile)).putInt(count);
+        long[] fencePositions = new long[(count + FENCE_INTERVAL - 1) / FENCE_INTERVAL];
+        for (int i = 0; i < count; i++) {
+            if (i % FENCE_INTERVAL == 0) {
+                fencePositions[i / FENCE_INTERVAL] = buffer.position();
+            }
+            RecordJournal.WrittenRecord record = records.get(order[i]);
+            buffer.putShort((short) ids[order[i]].length).put(ids[order[i]])
+                    .putLong(record.position()).putInt(record.length());
+        }
+        long fencesStart = buffer.position();
+        buffer.putInt(fencePositions.length);
+        for (int f = 0; f < fencePositions.length; f++) {
+            byte[] id = ids[order[f * FENCE_INTERVAL]];
+            buffer.putShort((short) id.length).put(id).putLong(fencePositions[f]);
+        }
+        buffer.putLong(fencesStart);
+
+        Path indexFile = log.segmentPath(segment, SEALED_SUFFIX);
+        Path temp = log.segmentPath(segment, SEALED_SUFFIX + ".tmp");
+        Files.write(temp, buffer.array());
+        Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Opens a sealed index and reads its fence table, or returns null if the file is missing,
+    // from an older format, torn or written for a different sealed file
+    private SealedIndex readSealedIndex(int segment) throws IOException {
+        Path indexFile = log.segmentPath(segment, SEALED_SUFFIX);
+        if (!Files.exists(indexFile)) {
+            return null;
+        }
+        FileChannel file = FileChannel.open(indexFile, StandardOpenOption.READ);
+        try {
+            long size = file.size();
+            if (size >= SEALED_HEADER_BYTES + 4 + 8) {
+                ByteBuffer header = read(file, 0, SEALED_HEADER_BYTES);
+                long fencesStart = read(file, size - 8, 8).getLong();
+                if (header.getInt() == SEALED_MAGIC && header.getLong() == Files.size(log.sealedFile(segment))
+                        && fencesStart >= SEALED_HEADER_BYTES && fencesStart <= size - 8 - 4) {
+                    ByteBuffer fences = read(file, fencesStart, (int) (size - 8 - fencesStart));
+                    int count = fences.getInt();
+                    if (count >= 0 && count <= fences.remaining() / 10) {
+                        String[] ids = new String[count];
+                        long[] positions = new long[count];
+                        boolean complete = true;
+                        for (int f = 0; f < count && complete; f++) {
+                            int idLength = fences.getShort() & 0xffff;
+                            complete = fences.remaining() >= idLength + 8;
+                            if (complete) {
+                                byte[] id = new byte[idLength];
+                                fences.get(id);
+                                ids[f] = new String(id, StandardCharsets.UTF_8);
+                                positions[f] = fences.getLong();
+                            }
+                        }
+                        if (complete && !fences.hasRemaining()) {
+                            return new SealedIndex(file, ids, positions, fencesStart);
+                        }
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+        file.close();
+        return null;
+    }
+
+    private static ByteBuffer read(FileChannel file, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining() && file.read(buffer, position + buffer.position()) >= 0) {
+            // positioned reads until the range is complete
+        }
+        return buffer.flip();
+    }
+
+    private void closeAppendIndex() throws IOException {
+        if (appendIndex != null) {
+            appendIndex.close();
+            appendIndex = null;
+            appendSegment = -1;
+        }
+    }
+
+    private static String patientId(String line) {
+        int pipe = line.indexOf('|');
+        String id = (pipe < 0 ? line : line.substring(0, pipe)).trim();
+        // Ids are stored with a 16-bit length prefix
+        return id.length() > Short.MAX_VALUE ? id.substring(0, Short.MAX_VALUE) : id;
+    }
+
+    // Previous records for the patient, oldest first: one fence lookup and one index read per
+    // sealed segment, then one positioned read per record. Holds the lock while reading so a
+    // segment cannot be re-indexed mid-history.
+    public synchronized List<String> history(String patientId) throws IOException {
+        String id = patientId(patientId);
+        Entries found = new Entries();
+        for (Map.Entry<Integer, SealedIndex> index : sealed.entrySet()) {
+            index.getValue().lookup(index.getKey(), id, found);
+        }
+        for (Map<String, Entries> entries : open.values()) {
+            Entries segmentEntries = entries.get(id);
+            for (int i = 0; segmentEntries != null && i < segmentEntries.size; i++) {
+                found.add(segmentEntries.positions[i], segmentEntries.lengths[i]);
+            }
+        }
+        found.sort();
+
+        List<String> history = new ArrayList<>(found.size);
+        for (int i = 0; i < found.size; i++) {
+            int segment = EncounterLog.segmentOf(found.positions[i]);
+            FileChannel reader = readers.get(segment);
+            if (reader == null) {
+                Path file = sealed.containsKey(segment) ? log.sealedFile(segment) : log.openFile(segment);
+                reader = FileChannel.open(file, StandardOpenOption.READ);
+                readers.put(segment, reader);
+            }
+            ByteBuffer buffer = read(reader, EncounterLog.offsetOf(found.positions[i]), found.lengths[i]);
+            String line = new String(buffer.array(), 0, buffer.limit(), StandardCharsets.UTF_8);
+            history.add(line.stripTrailing());
+        }
+        return history;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closeAppendIndex();
+        for (FileChannel reader : readers.values()) {
+            reader.close();
+        }
+        readers.clear();
+        for (SealedIndex index : sealed.values()) {
+            index.file.close();
+        }
+        sealed.clear();
+    }
+}
@@ -0,0 +1,84 @@
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+// Per-patient state for one encounter. Cheap to create: it only references the
+// shared KnowledgeBase snapshot instead of loading its own copy of the files.
+// Not thread-safe: use one session per request or patient; the snapshot itself is.
+final class PatientSession {
+    private static final int SUGGESTIONS = 3;
+
+    private final KnowledgeBase knowledgeBase;
+    private final String patientId;
+    private final String patientName;
+    private final List<String> patientSymptoms = new ArrayList<>();
+    private String[] lastDiagnoses;
+
+    PatientSession(KnowledgeBase knowledgeBase, String patientId, String patientName) {
+        this.knowledgeBase = knowledgeBase;
+        this.patientId = patientId;
+        this.patientName = patientName;
+    }
+
+    // Accepts synonyms and near misspellings, which are stored as the canonical symptom
+    public void addSymptom(String symptom) throws UnrecognizedSymptomException {
+        SymptomResolver resolver = knowledgeBase.getResolver();
+        String normalizedSymptom = resolver.resolve(symptom);
+        if (normalizedSymptom == null) {
+            List<String> suggestions = resolver.suggestions(symptom, SUGGESTIONS);
+            throw new UnrecognizedSymptomException("Symptom '" + symptom + "' not recognized"
+                    + (suggestions.isEmpty() ? "" : " (did you mean " + String.join(", ", suggestions) + "?)"));
+        }
+        if (!normalizedSymptom.equals(SymptomResolver.normalize(symptom))) {
+            Metrics.SYMPTOMS_RESOLVED.increment();
+        }
+        if (!patientSymptoms.contains(normalizedSymptom)) {
+            patientSymptoms.add(normalizedSymptom);
+            lastDiagnoses = null;
+        }
+    }
+
+    public String[] diagnosis() throws UnrecognizedDiseaseException {
+        lastDiagnoses = knowledgeBase.diagnosis(patientSymptoms);
+        return lastDiagnoses;
+    }
+
+    // Best partial matches, for when no disease is linked to every selected symptom
+    public ScoredDiagnosis[] rankedDiagnosis(int k) {
+        return knowledgeBase.rankedDiagnosis(patientSymptoms, k);
+    }
+
+    // Queues this encounter on the journal, reusing the last diagnosis instead of recomputing it
+    public CompletableFuture<Void> save(RecordJournal journal) {
+        try {
+            String[] diagnoses = lastDiagnoses != null ? lastDiagnoses : diagnosis();
+            return journal.append(MedicalDataBase.formatRecord(patientId, patientName, patientSymptoms, diagnoses,
+                    Instant.now()));
+        } catch (UnrecognizedDiseaseException | IllegalArgumentException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    public void clearSymptoms() {
+        patientSymptoms.clear();
+        lastDiagnoses = null;
+    }
+
+    public String getPatientId() {
+        return patientId;
+    }
+
+    public String getPatientName() {
+        return patientName;
+    }
+
+    public List<String> getPatientSymptoms() {
+        return Collections.unmodifiableList(patientSymptoms);
+    }
+
+    public KnowledgeBase getKnowledgeBase() {
+        return knowledgeBase;
+    }
+}
@@ -0,0 +1,351 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Long-lived append writer for the EncounterLog. Callers enqueue records and get a
+// future back; a single writer thread group-commits whatever arrived within the
+// batch window with one write (and optionally one fsync) per batch. Once the active
+// segment passes the log's segment size the writer rotates to a new one and hands the
+// old one to a background compactor. The writer thread is the only one that appends to
+// the active segment, so a process writes through one journal per log (see shared()).
+final class RecordJournal implements AutoCloseable {
+    static final int DEFAULT_BATCH_SIZE = 256;
+    static final long DEFAULT_BATCH_WINDOW_MILLIS = 5;
+    private static final int REPLAY_BUFFER_SIZE = 1 << 16;
+    private static final int REPLAY_BATCH_SIZE = 4096;
+
+    // A record as it landed: the line without its newline, its EncounterLog position and byte length
+    record WrittenRecord(String line, long position, int length) {}
+
+    // Notified on the writer thread after each batch is written, in log order, and on the
+    // compactor thread once a segment is sealed with the duplicate records it dropped.
+    // Listeners that build state from the log are registered with attach().
+    interface Listener {
+        void recordsWritten(List<WrittenRecord> records);
+
+        default void segmentSealed(int segment, List<String> removed) {
+        }
+    }
+
+    // Builds a listener from what the log holds right now, for attach()
+    interface ListenerOpener<L extends Listener> {
+        L open(EncounterLog log) throws IOException;
+    }
+
+    private record Pending(String line, byte[] bytes, CompletableFuture<Void> done) {}
+
+    private static final Pending CLOSE = new Pending("", new byte[0], null);
+
+    private static RecordJournal shared;
+
+    private final EncounterLog log;
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "encounter-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private FileChannel channel;
+    private int segment;
+    private final int maxBatchSize;
+    private final long batchWindowNanos;
+    private final boolean fsync;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    // Held by the writer while a batch is written and announced, and by the compactor while a
+    // segment is sealed and announced; attach() holds both
+    private final Object writeLock = new Object();
+    private final Object sealLock = new Object();
+    private long position;
+    private volatile boolean closed;
+
+    RecordJournal(EncounterLog log) throws IOException {
+        this(log, DEFAULT_BATCH_SIZE, DEFAULT_BATCH_WINDOW_MILLIS, false);
+    }
+
+    RecordJournal(EncounterLog log, int maxBatchSize, long batchWindowMillis, boolean fsync) throws IOException {
+        this.log = log;
+        log.deleteSealedOpenFiles();
+        this.segment = log.activeSegment();
+        this.channel = log.openForAppend(segment);
+        this.position = channel.size();
+        this.maxBatchSize = maxBatchSize;
+        this.batchWindowNanos = TimeUnit.MILLISECONDS.toNanos(batchWindowMillis);
+        this.fsync = fsync;
+        this.writer = new Thread(this::run, "record-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // The journal for EncounterLog.DIRECTORY that the GUI, the service and the legacy
+    // MedicalDataBase.saveToCSV share, opened on first use and cleared again by close()
+    static synchronized RecordJournal shared() throws IOException {
+        if (shared == null) {
+            shared = new RecordJournal(new EncounterLog(Path.of(EncounterLog.DIRECTORY)));
+        }
+        return shared;
+    }
+
+    public EncounterLog getLog() {
+        return log;
+    }
+
+    // Queues one record line (without the trailing newline); completes once it is written
+    public CompletableFuture<Void> append(String record) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        Pending pending = new Pending(record, (record + "\n").getBytes(StandardCharsets.UTF_8), done);
+        synchronized (queue) {
+            if (closed) {
+                done.completeExceptionally(new IOException("Record journal is closed"));
+                return done;
+            }
+            queue.add(pending);
+        }
+        return done;
+    }
+
+    private void run() {
+        List<Pending> batch = new ArrayList<>(maxBatchSize);
+        boolean stopping = false;
+        while (!stopping) {
+            try {
+                Pending first = queue.take();
+                if (first == CLOSE) {
+                    break;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + batchWindowNanos;
+                while (batch.size() < maxBatchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    Pending next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    if (next == CLOSE) {
+                        stopping = true;
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                stopping = true;
+            }
+            flush(batch);
+            batch.clear();
+        }
+        // Records queued ahead of CLOSE but not yet taken are still written
+        for (Pending pending; (pending = queue.poll()) != null; ) {
+            if (pending != CLOSE) {
+                batch.add(pending);
+            }
+        }
+        flush(batch);
+    }
+
+    private void flush(List<Pending> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        int length = 0;
+        for (Pending pending : batch) {
+            length += pending.bytes().length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        for (Pending pending : batch) {
+            buffer.put(pending.bytes());
+        }
+        buffer.flip();
+        try {
+            synchronized (writeLock) {
+                long start = System.nanoTime();
+                writeFully(buffer);
+                if (fsync) {
+                    channel.force(false);
+                }
+                List<WrittenRecord> written = new ArrayList<>(batch.size());
+                for (Pending pending : batch) {
+                    written.add(new WrittenRecord(pending.line(), EncounterLog.position(segment, position),
+                            pending.bytes().length));
+                    position += pending.bytes().length;
+                }
+                Metrics.JOURNAL_WRITE.recordSince(start);
+                Metrics.JOURNAL_BATCHES.increment();
+                Metrics.JOURNAL_RECORDS.add(batch.size());
+                notifyListeners(written);
+            }
+            for (Pending pending : batch) {
+                pending.done().complete(null);
+            }
+            if (position >= log.getSegmentBytes()) {
+                rotate();
+            }
+        } catch (IOException e) {
+            // Part of the batch may have landed; offsets continue from the real end of file
+            try {
+                position = channel.size();
+            } catch (IOException ignored) {
+                // The channel is unusable; every later write fails too
+            }
+            Metrics.SAVE_ERRORS.add(batch.size());
+            for (Pending pending : batch) {
+                pending.done().completeExceptionally(e);
+            }
+        }
+    }
+
+    private void notifyListeners(List<WrittenRecord> written) {
+        for (Listener listener : listeners) {
+            try {
+                listener.recordsWritten(written);
+            } catch (RuntimeException e) {
+                // A failing listener must not stop records from being written
+                System.err.println("Record listener failed: " + e);
+            }
+        }
+    }
+
+    // Starts the next segment and compacts every open segment before it, including any a
+    // crash left unsealed. On failure the writer keeps appending to the current segment.
+    private void rotate() {
+        try {
+            FileChannel next = log.openForAppend(segment + 1);
+            channel.close();
+            channel = next;
+            segment++;
+            position = channel.size();
+        } catch (IOException e) {
+            System.err.println("Could not rotate the encounter log: " + e.getMessage());
+            return;
+        }
+        int active = segment;
+        compactor.execute(() -> {
+            try {
+                for (int older : log.segments()) {
+                    if (older < active && !log.isSealed(older)) {
+                        seal(older);
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Error compacting the encounter log: " + e.getMessage());
+            }
+        });
+    }
+
+    private void seal(int sealing) throws IOException {
+        long start = System.nanoTime();
+        List<String> removed;
+        synchronized (sealLock) {
+            removed = log.seal(sealing);
+            for (Listener listener : listeners) {
+                try {
+                    listener.segmentSealed(sealing, removed);
+                } catch (RuntimeException e) {
+                    System.err.println("Record listener failed: " + e);
+                }
+            }
+            log.deleteOpen(sealing);
+        }
+        Metrics.COMPACTION.recordSince(start);
+        Metrics.SEGMENTS_SEALED.increment();
+        Metrics.DUPLICATES_REMOVED.add(removed.size());
+    }
+
+    // Opens a listener over the log and registers it while no batch is written and no segment
+    // is sealed, so it is told about exactly the records and seals it did not read itself.
+    // Appends queued meanwhile wait in the queue; a compaction in progress is waited for.
+    public <L extends Listener> L attach(ListenerOpener<L> opener) throws IOException {
+        synchronized (sealLock) {
+            synchronized (writeLock) {
+                L listener = opener.open(log);
+                listeners.add(listener);
+                return listener;
+            }
+        }
+    }
+
+    // Feeds records already in one segment file from the given offset to a listener, in
+    // batches, with positions as byte offsets into that file (EncounterLog.replay turns them
+    // into log positions). A trailing line without a newline is left for the next catch-up.
+    static void replay(FileChannel records, long from, Listener listener) throws IOException {
+        long end = records.size();
+        List<WrittenRecord> found = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.allocate(REPLAY_BUFFER_SIZE);
+        byte[] line = new byte[256];
+        int lineLength = 0;
+        long lineStart = from;
+        long position = from;
+        while (position < end) {
+            buffer.clear();
+            int read = records.read(buffer, position);
+            if (read < 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                byte b = buffer.get(i);
+                if (b == '\n') {
+                    // Skip the header and blank or malformed lines
+                    String text = new String(line, 0, lineLength, StandardCharsets.UTF_8);
+                    if (lineStart > 0 && text.indexOf('|') > 0) {
+                        found.add(new WrittenRecord(text, lineStart, lineLength + 1));
+                        if (found.size() == REPLAY_BATCH_SIZE) {
+                            listener.recordsWritten(found);
+                            found = new ArrayList<>();
+                        }
+                    }
+                    lineStart = position + i + 1;
+                    lineLength = 0;
+                } else {
+                    if (lineLength == line.length) {
+                        line = Arrays.copyOf(line, line.length * 2);
+                    }
+                    line[lineLength++] = b;
+                }
+            }
+            position += read;
+        }
+        listener.recordsWritten(found);
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    // Flushes everything queued so far, then closes the file
+    @Override
+    public void close() throws IOException {
+        synchronized (queue) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            queue.add(CLOSE);
+        }
+        synchronized (RecordJournal.class) {
+            if (shared == this) {
+                shared = null;
+            }
+        }
+        try {
+            writer.join();
+            compactor.shutdown();
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+}
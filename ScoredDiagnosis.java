@@ -0,0 +1,9 @@
+// One ranked candidate: how many of the disease's known symptoms the patient has,
+// and the Jaccard overlap between the patient's symptoms and the disease's symptoms.
+record ScoredDiagnosis(String disease, int matchedSymptoms, int totalSymptoms, double score) {
+
+    @Override
+    public String toString() {
+        return String.format("%s (%d/%d, %.2f)", disease, matchedSymptoms, totalSymptoms, score);
+    }
+}
@@ -0,0 +1,514 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+// Behaviour checks for the parts that keep state or parse input: the JSON reader, the
+// diagnosis cache, the encounter log with its journal, rotation and compaction, the history
+// and cohort indexes, the analytics, and a bounded hot-reload stress run. The log checks use
+// their own temporary directories; the stress run rewrites disease.txt, so like the
+// benchmarks it only runs in a directory created by SyntheticData:
+//
+//   java SyntheticData check 500 1000 20000
+//   cd check && java -cp .. SelfCheck [stress seconds]
+//
+// Every failed check is printed, and the exit status is 1 if any failed.
+final class SelfCheck {
+    private static final int DEFAULT_STRESS_SECONDS = 10;
+    private static final Instant EPOCH = Instant.parse("2024-01-15T09:00:00Z");
+
+    private interface Check {
+        void run() throws Exception;
+    }
+
+    private int checks;
+    private int failures;
+    // The log checks' directories, deleted once every section has run
+    private final Path scratch;
+
+    private SelfCheck(Path scratch) {
+        this.scratch = scratch;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (!Files.exists(Path.of(SyntheticData.MARKER_FILE))) {
+            System.err.println("Refusing to run outside a SyntheticData directory: the stress run rewrites disease.txt.");
+            System.exit(2);
+        }
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_STRESS_SECONDS;
+        SelfCheck check = new SelfCheck(Files.createTempDirectory("selfcheck"));
+        check.section("json", check::json);
+        check.section("cache", check::cache);
+        check.section("journal", check::journal);
+        check.section("compaction", check::compaction);
+        check.section("history", check::history);
+        check.section("cohorts", check::cohorts);
+        check.section("analytics", check::analytics);
+        check.section("stress", () -> check.stress(seconds));
+        try (Stream<Path> files = Files.walk(check.scratch)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+        System.out.printf("%d checks, %d failed%n", check.checks, check.failures);
+        System.exit(check.failures == 0 ? 0 : 1);
+    }
+
+    private void section(String name, Check body) {
+        int failedBefore = failures;
+        long start = System.nanoTime();
+        try {
+            body.run();
+        } catch (Exception e) {
+            fail(name + " threw " + e);
+        }
+        System.out.printf("%-12s %s (%.1f s)%n", name, failures == failedBefore ? "ok" : "FAILED",
+                (System.nanoTime() - start) / 1e9);
+    }
+
+    private void expect(boolean condition, String what) {
+        checks++;
+        if (!condition) {
+            fail(what);
+        }
+    }
+
+    private void expectEquals(Object expected, Object actual, String what) {
+        expect(expected.equals(actual), what + ": expected " + expected + ", got " + actual);
+    }
+
+    private void expectRejected(String json) {
+        String shown = json.length() > 60 ? json.substring(0, 60) + "..." : json;
+        try {
+            Json.parseObject(json);
+            expect(false, "accepted invalid JSON " + shown);
+        } catch (IllegalArgumentException e) {
+            expect(true, shown);
+        }
+    }
+
+    private void fail(String what) {
+        failures++;
+        System.err.println("FAIL " + what);
+    }
+
+    private void json() {
+        Map<String, Object> parsed = Json.parseObject(
+                "{\"id\":\"P1\",\"symptoms\":[\"fever\",\"cough\"],\"n\":2.5,\"ok\":true,\"none\":null,\"o\":{}}");
+        expectEquals("P1", parsed.get("id"), "string field");
+        expectEquals(List.of("fever", "cough"), parsed.get("symptoms"), "array field");
+        expectEquals(2.5, parsed.get("n"), "number field");
+        expectEquals(Boolean.TRUE, parsed.get("ok"), "boolean field");
+        expect(parsed.containsKey("none") && parsed.get("none") == null, "null field");
+        expectEquals(Map.of(), parsed.get("o"), "empty object");
+        expectEquals("q\"b\\s/\n\tJ\u00e9",
+                Json.parseObject("{\"s\":\"q\\\"b\\\\s\\/\\n\\t\\u004A\\u00E9\"}").get("s"), "escapes");
+        expectEquals("{\"s\":\"a\\\"b\\\\c\\n\"}",
+                Json.quote(new StringBuilder("{\"s\":"), "a\"b\\c\n").append('}').toString(), "quote");
+
+        expectRejected("{\"s\":\"\\x\"}");
+        expectRejected("{\"s\":\"\\q\"}");
+        expectRejected("{\"s\":\"\\u+04A\"}");
+        expectRejected("{\"s\":\"\\u12\"}");
+        expectRejected("{\"s\":\"\\u12G4\"}");
+        expectRejected("{\"s\":\"open");
+        expectRejected("{\"s\":1} trailing");
+        expectRejected("[1, 2]");
+        expectRejected("{\"s\":1,}");
+        // The object is one level, each array another; deep input is refused before the stack runs out
+        expectEquals(1, Json.parseObject(nested(Json.MAX_DEPTH - 1)).size(), "nesting up to MAX_DEPTH");
+        expectRejected(nested(Json.MAX_DEPTH));
+        expectRejected(nested(100_000));
+    }
+
+    private void cache() {
+        DiagnosisCache cache = new DiagnosisCache(64);
+        DiagnosisCache.Key key = new DiagnosisCache.Key(new int[] {3, 1, 2, 3});
+        expectEquals(key, new DiagnosisCache.Key(new int[] {1, 2, 3}), "keys ignore order and repeats");
+        expect(cache.get(key) == null, "miss before put");
+        cache.put(key, new String[] {"flu"});
+        String[] hit = cache.get(new DiagnosisCache.Key(new int[] {2, 3, 1}));
+        expect(hit != null && Arrays.equals(hit, new String[] {"flu"}), "hit in another order");
+        hit[0] = "changed";
+        expectEquals("flu", cache.get(key)[0], "hits are copies");
+        for (int i = 0; i < 10_000; i++) {
+            cache.put(new DiagnosisCache.Key(new int[] {i, i + 1}), new String[] {"d" + i});
+        }
+        expect(cache.size() <= 64, "capacity bound, size " + cache.size());
+        DiagnosisCache.Key recent = new DiagnosisCache.Key(new int[] {9_999, 10_000});
+        expect(cache.get(recent) != null, "most recent entry kept");
+        cache.invalidate();
+        expectEquals(0, cache.size(), "size after invalidate");
+    }
+
+    // Appends through a journal with tiny segments and reads everything back
+    private void journal() throws Exception {
+        Path directory = Files.createDirectory(scratch.resolve("journal"));
+        EncounterLog log = new EncounterLog(directory, 4096);
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 2_000; i++) {
+            lines.add(record("P" + i % 37, "s" + i % 11 + ",s" + i % 7, "d" + i % 5, EPOCH.plusMillis(i)));
+        }
+        try (RecordJournal journal = new RecordJournal(log, 64, 1, false)) {
+            appendAll(journal, lines);
+        }
+        expect(log.segments().length > 10, "rotated into " + log.segments().length + " segments");
+        List<String> replayed = new ArrayList<>();
+        log.replay(0, records -> {
+            for (RecordJournal.WrittenRecord record : records) {
+                replayed.add(record.line());
+            }
+        });
+        expectEquals(lines, replayed, "replay returns every record in order");
+        for (int segment : log.segments()) {
+            if (segment < log.segments()[log.segments().length - 1]) {
+                expect(log.isSealed(segment) && !Files.exists(log.openFile(segment)),
+                        "segment " + segment + " sealed and its open file removed");
+            }
+        }
+        // Reopening continues the active segment after the records already there
+        try (RecordJournal journal = new RecordJournal(log, 64, 1, false)) {
+            appendAll(journal, List.of(record("P-last", "s1", "d1", EPOCH.plusSeconds(60))));
+        }
+        List<String> all = readLog(log);
+        expectEquals(lines.size() + 1, all.size(), "record count after reopening");
+        expectEquals(record("P-last", "s1", "d1", EPOCH.plusSeconds(60)), all.get(all.size() - 1), "last record");
+    }
+
+    // Only exact re-submissions are dropped; repeat visits and undated rows stay
+    private void compaction() throws Exception {
+        Path directory = Files.createDirectory(scratch.resolve("compaction"));
+        EncounterLog log = new EncounterLog(directory);
+        String once = record("P1", "fever", "flu", EPOCH);
+        String resubmitted = record("P2", "cough", "cold", EPOCH.plusSeconds(1));
+        String sameDayVisit = record("P2", "cough", "cold", EPOCH.plusSeconds(3600));
+        String undated = "P3|Old|rash|measles";
+        Files.writeString(log.openFile(1), EncounterLog.HEADER + String.join("\n",
+                once, resubmitted, resubmitted, sameDayVisit, undated, undated) + "\n");
+        List<String> removed = log.seal(1);
+        expectEquals(List.of(resubmitted), removed, "dropped lines");
+        expectEquals(List.of(once, resubmitted, sameDayVisit, undated, undated), readLog(log), "sealed records");
+
+        // A record cut short by a crash is not carried into the sealed file
+        Files.writeString(log.openFile(2), EncounterLog.HEADER + once + "\nP9|Torn|fev");
+        log.seal(2);
+        expectEquals(EncounterLog.HEADER + once + "\n", Files.readString(log.sealedFile(2)), "torn tail dropped");
+    }
+
+    private void history() throws Exception {
+        Path directory = Files.createDirectory(scratch.resolve("history"));
+        EncounterLog log = new EncounterLog(directory, 8192);
+        int patients = 97;
+        RecordJournal journal = new RecordJournal(log, 64, 1, false);
+        // Appends run while the index attaches, so records land on both sides of it
+        CompletableFuture<Void> writer = CompletableFuture.runAsync(() -> {
+            for (int i = 0; i < 3_000; i++) {
+                String line = record("P" + i % patients, "s" + i, "d" + i % 3, EPOCH.plusMillis(i));
+                journal.append(line);
+                if (i % 7 == 0) {
+                    journal.append(line); // An exact re-submission, dropped by compaction
+                }
+            }
+        });
+        Thread.sleep(2);
+        PatientHistoryIndex index = journal.attach(PatientHistoryIndex::new);
+        writer.join();
+        journal.append(record("P0", "last", "d0", EPOCH.plusSeconds(60))).join();
+        journal.close(); // Waits for compaction, so the log no longer changes
+        expectHistories(log, index, patients, "live");
+        index.close();
+        try (PatientHistoryIndex reopened = new PatientHistoryIndex(log)) {
+            expectHistories(log, reopened, patients, "reopened");
+            expectEquals(List.of(), reopened.history("nobody"), "unknown patient");
+        }
+        // A damaged sealed index is rebuilt from its sealed file
+        try (DirectoryStream<Path> indexes = Files.newDirectoryStream(directory, "*.sealed.idx")) {
+            for (Path damaged : indexes) {
+                Files.write(damaged, new byte[] {1, 2, 3});
+            }
+        }
+        try (PatientHistoryIndex rebuilt = new PatientHistoryIndex(log)) {
+            expectHistories(log, rebuilt, patients, "rebuilt");
+        }
+    }
+
+    private void expectHistories(EncounterLog log, PatientHistoryIndex index, int patients, String label)
+            throws IOException {
+        Map<String, List<String>> expected = new HashMap<>();
+        for (String line : readLog(log)) {
+            expected.computeIfAbsent(line.substring(0, line.indexOf('|')), k -> new ArrayList<>()).add(line);
+        }
+        int mismatched = 0;
+        for (int p = 0; p < patients; p++) {
+            if (!index.history("P" + p).equals(expected.getOrDefault("P" + p, List.of()))) {
+                mismatched++;
+            }
+        }
+        expectEquals(0, mismatched, label + " histories that differ from a log scan");
+    }
+
+    private void cohorts() throws Exception {
+        Path directory = Files.createDirectory(scratch.resolve("cohorts"));
+        EncounterLog log = new EncounterLog(directory, 16384);
+        Random random = new Random(5);
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 4_000; i++) {
+            Set<String> symptoms = new HashSet<>();
+            for (int s = 1 + random.nextInt(4); s > 0; s--) {
+                symptoms.add("s" + random.nextInt(30));
+            }
+            lines.add(record("P" + i, String.join(",", symptoms), "d" + i % 4, EPOCH.plusMillis(i)));
+        }
+        RecordJournal journal = new RecordJournal(log, 64, 1, false);
+        CohortIndex cohorts = journal.attach(CohortIndex::new);
+        appendAll(journal, lines);
+        journal.close();
+        expectCohorts(lines, cohorts, random, "live");
+        cohorts.close();
+        try (CohortIndex reopened = new CohortIndex(log)) {
+            expectCohorts(lines, reopened, random, "reopened");
+            expectEquals(0L, reopened.query(List.of("unknown"), List.of(), 5).count(), "unknown symptom");
+        }
+    }
+
+    private void expectCohorts(List<String> lines, CohortIndex cohorts, Random random, String label)
+            throws IOException {
+        int mismatched = 0;
+        for (int q = 0; q < 200; q++) {
+            List<String> all = new ArrayList<>();
+            List<String> any = new ArrayList<>();
+            for (int s = random.nextInt(3); s > 0; s--) {
+                all.add("s" + random.nextInt(30));
+            }
+            for (int s = all.isEmpty() ? 1 + random.nextInt(3) : random.nextInt(3); s > 0; s--) {
+                any.add("S" + random.nextInt(30)); // Matching ignores case
+            }
+            List<String> expected = new ArrayList<>();
+            for (String line : lines) {
+                Set<String> symptoms = Set.of(line.split("\\|")[2].split(","));
+                if (symptoms.containsAll(all)
+                        && (any.isEmpty() || any.stream().anyMatch(s -> symptoms.contains(s.toLowerCase())))) {
+                    expected.add(line);
+                }
+            }
+            CohortIndex.Cohort cohort = cohorts.query(all, any, 10);
+            if (cohort.count() != expected.size()
+                    || !cohort.records().equals(expected.subList(0, Math.min(10, expected.size())))) {
+                mismatched++;
+            }
+        }
+        expectEquals(0, mismatched, label + " cohort queries that differ from a log scan");
+    }
+
+    private void analytics() throws Exception {
+        Path directory = Files.createDirectory(scratch.resolve("analytics"));
+        EncounterLog log = new EncounterLog(directory, 4096);
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 1_500; i++) {
+            String disease = "d" + i % 6;
+            String line = i % 10 == 0 ? "P" + i + "|Old|s" + i % 9 + "|" + disease
+                    : record("P" + i, "s" + i % 9, disease, EPOCH.minusSeconds(86_400L * (i % 3)).plusMillis(i));
+            lines.add(line);
+            if (i % 5 == 1) {
+                lines.add(line); // An exact re-submission, dropped by compaction
+            }
+        }
+        RecordJournal journal = new RecordJournal(log, 64, 1, false);
+        EncounterAnalytics analytics = journal.attach(EncounterAnalytics::new);
+        appendAll(journal, lines);
+        journal.close();
+        // Re-submissions still in the active segment are counted until it is sealed, so the
+        // totals must match the log as it is now, not the distinct records
+        List<String> logged = readLog(log);
+        expect(logged.size() < lines.size(), "compaction dropped re-submissions");
+        expectAnalytics(analytics, logged, "live");
+        analytics.close();
+        try (EncounterAnalytics reopened = new EncounterAnalytics(log)) {
+            expectAnalytics(reopened, logged, "reopened");
+        }
+        Files.delete(directory.resolve(EncounterAnalytics.STATS_FILE));
+        try (EncounterAnalytics rebuilt = new EncounterAnalytics(log)) {
+            expectAnalytics(rebuilt, logged, "rebuilt");
+        }
+    }
+
+    private void expectAnalytics(EncounterAnalytics analytics, List<String> logged, String label) {
+        Map<String, Long> diseases = new HashMap<>();
+        long undated = 0;
+        for (String line : logged) {
+            diseases.merge(line.split("\\|")[3], 1L, Long::sum);
+            if (EncounterLog.recordedAt(line) == null) {
+                undated++;
+            }
+        }
+        expectEquals((long) logged.size(), analytics.encounterCount(), label + " encounter count");
+        expectEquals(undated, analytics.undatedCount(), label + " undated count");
+        Map<String, Long> counted = new HashMap<>();
+        for (EncounterAnalytics.Count count : analytics.topDiseases(100, 0)) {
+            counted.put(count.name(), count.count());
+        }
+        expectEquals(diseases, counted, label + " disease totals");
+        long dated = 0;
+        for (EncounterAnalytics.DayVolume day : analytics.volume(100_000)) {
+            dated += day.count();
+        }
+        expectEquals(logged.size() - undated, dated, label + " daily volume total");
+    }
+
+    private static String nested(int arrays) {
+        return "{\"a\":" + "[".repeat(arrays) + "]".repeat(arrays) + "}";
+    }
+
+    private static String record(String patientId, String symptoms, String diseases, Instant recordedAt) {
+        return patientId + "|Name|" + symptoms + "|" + diseases + "|" + recordedAt;
+    }
+
+    private static void appendAll(RecordJournal journal, List<String> lines) {
+        List<CompletableFuture<Void>> appended = new ArrayList<>(lines.size());
+        for (String line : lines) {
+            appended.add(journal.append(line));
+        }
+        CompletableFuture.allOf(appended.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+    // Every record in the log, in log order
+    private static List<String> readLog(EncounterLog log) throws IOException {
+        List<String> records = new ArrayList<>();
+        for (int segment : log.segments()) {
+            for (String line : Files.readAllLines(log.segmentFile(segment), StandardCharsets.UTF_8)) {
+                if (!line.isEmpty() && !line.equals(EncounterLog.HEADER.strip())) {
+                    records.add(line);
+                }
+            }
+        }
+        return records;
+    }
+
+    // Hot-reload race check: readers share whatever snapshot the manager hands out while a
+    // writer toggles the last disease in and out of disease.txt, which flips diseases
+    // between recognized and unrecognized on every reload. With a zero check interval every
+    // read asks for a check, so the reload thread reloads back to back while the readers
+    // keep diagnosing; their current() latency shows they never wait for it.
+    private void stress(int seconds) throws Exception {
+        Path diseaseFile = Path.of(MedicalDataBase.DISEASES_FILE);
+        byte[] original = Files.readAllBytes(diseaseFile);
+        String text = new String(original, StandardCharsets.UTF_8).stripTrailing();
+        byte[] truncated = (text.substring(0, Math.max(0, text.lastIndexOf('\n'))) + "\n")
+                .getBytes(StandardCharsets.UTF_8);
+
+        KnowledgeBaseManager manager = new KnowledgeBaseManager(0);
+        expect(manager.load() == null, "initial load: " + manager.getLastError());
+        MedicalDataBase db = new MedicalDataBase("S", "Stress");
+        expect(db.loadSymptoms() == null, "symptoms load");
+        List<List<String>> queries = MedicalBenchmark.queries(db, new Random(11));
+
+        LongAdder checked = new LongAdder();
+        LongAdder mismatches = new LongAdder();
+        LongAdder snapshotsSeen = new LongAdder();
+        LatencyHistogram currentLatency = new LatencyHistogram("stress.current");
+        AtomicBoolean running = new AtomicBoolean(true);
+        int readers = Runtime.getRuntime().availableProcessors() * 2;
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < readers; t++) {
+            int seed = t;
+            threads.add(Thread.ofPlatform().name("stress-" + t).start(() -> {
+                Random random = new Random(seed);
+                KnowledgeBase previous = null;
+                while (running.get()) {
+                    List<String> query = queries.get(random.nextInt(queries.size()));
+                    long start = System.nanoTime();
+                    KnowledgeBase kb = manager.current();
+                    currentLatency.recordSince(start);
+                    if (kb != previous) {
+                        snapshotsSeen.increment();
+                        previous = kb;
+                    }
+                    String failure = verify(kb, query);
+                    if (failure != null) {
+                        mismatches.increment();
+                        System.err.println(failure);
+                    }
+                    checked.increment();
+                }
+            }));
+        }
+
+        int rewrites = 0;
+        long swapsBefore = Metrics.RELOADS.sum();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        try {
+            // Each rewrite waits for its reload, so every one is seen by the readers
+            while (System.nanoTime() < deadline) {
+                Files.write(diseaseFile, rewrites % 2 == 0 ? truncated : original);
+                rewrites++;
+                long swaps = Metrics.RELOADS.sum();
+                while (Metrics.RELOADS.sum() == swaps && System.nanoTime() < deadline) {
+                    Thread.sleep(1);
+                }
+            }
+        } finally {
+            running.set(false);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            Files.write(diseaseFile, original);
+        }
+        System.out.printf("stress: %d readers, %d file rewrites, %d snapshot swaps, %d snapshot changes seen by"
+                        + " readers, %d diagnoses checked (%.0f/s), %d mismatches%n",
+                readers, rewrites, Metrics.RELOADS.sum() - swapsBefore, snapshotsSeen.sum(), checked.sum(),
+                checked.sum() / (double) seconds, mismatches.sum());
+        System.out.printf("stress: current() p50 %.2f us, p99.9 %.2f us; reload p50 %.0f us%n",
+                currentLatency.getPercentileMicros(0.50), currentLatency.getPercentileMicros(0.999),
+                Metrics.RELOAD.getPercentileMicros(0.50));
+        expectEquals(0L, mismatches.sum(), "diagnoses that differ from the legacy diagnosis of the same snapshot");
+        expect(rewrites > 1 && snapshotsSeen.sum() > readers, "readers saw the reloads (" + rewrites
+                + " rewrites, " + snapshotsSeen.sum() + " snapshot changes seen)");
+    }
+
+    // Compares the engine (and its cache) with the legacy diagnosis over the snapshot's own maps
+    private static String verify(KnowledgeBase kb, List<String> query) {
+        PatientSession session = new PatientSession(kb, "S", "Stress");
+        String[] actual;
+        String[] expected;
+        try {
+            for (String symptom : query) {
+                session.addSymptom(symptom);
+            }
+        } catch (UnrecognizedSymptomException e) {
+            return "symptom rejected by its own snapshot: " + e.getMessage();
+        }
+        try {
+            actual = session.diagnosis();
+        } catch (UnrecognizedDiseaseException e) {
+            actual = null;
+        }
+        try {
+            expected = MedicalDataBase.diagnose(kb.getSymptomToDiseases(), kb.getValidDiseases(), query);
+        } catch (UnrecognizedDiseaseException e) {
+            expected = null;
+        }
+        if (actual == null || expected == null) {
+            return actual == expected ? null
+                    : query + ": engine " + Arrays.toString(actual) + ", legacy " + Arrays.toString(expected);
+        }
+        Arrays.sort(actual);
+        Arrays.sort(expected);
+        return Arrays.equals(actual, expected) ? null
+                : query + ": engine " + Arrays.toString(actual) + ", legacy " + Arrays.toString(expected);
+    }
+}
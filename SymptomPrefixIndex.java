@@ -0,0 +1,57 @@
+import java.util.Arrays;
+import java.util.Collection;
+
+// Sorted array of symptom names for typeahead. The names starting with a prefix form one
+// contiguous run, found with two binary searches, so filtering costs O(log n) however
+// large the vocabulary is and callers page through the run by index. Immutable.
+final class SymptomPrefixIndex {
+    private final String[] names;
+
+    SymptomPrefixIndex(Collection<String> names) {
+        this.names = names.toArray(new String[0]);
+        Arrays.sort(this.names);
+    }
+
+    // First index whose name starts with the prefix, or would sort after it
+    public int from(String prefix) {
+        int low = 0;
+        int high = names.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (names[middle].compareTo(prefix) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    // One past the last index whose name starts with the prefix
+    public int to(String prefix) {
+        int low = from(prefix);
+        int high = names.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (names[middle].startsWith(prefix)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    // Typed text as a prefix: lowercased, with leading spaces dropped but trailing ones kept
+    public static String normalize(String typed) {
+        return typed.stripLeading().toLowerCase();
+    }
+
+    public String name(int index) {
+        return names[index];
+    }
+
+    public int size() {
+        return names.length;
+    }
+}
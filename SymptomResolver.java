@@ -0,0 +1,196 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+// Maps free-text symptom entries onto canonical symptoms: an exact name first, then a
+// synonyms.txt alias, then the closest name or alias within a small edit distance. Names
+// and aliases are kept in a BK-tree keyed by Levenshtein distance, so a fuzzy lookup only
+// visits the subtrees the triangle inequality cannot rule out. Immutable and thread-safe.
+final class SymptomResolver {
+    private final Set<String> validSymptoms;
+    // Alias -> canonical symptom, only for aliases of valid symptoms
+    private final Map<String, String> synonyms;
+
+    // BK-tree over every name and alias: node n holds terms[n] (resolving to canonical[n]),
+    // its children are linked through firstChild/nextSibling and edge[n] is its distance
+    // from its parent. Node 0 is the root.
+    private final String[] terms;
+    private final String[] canonical;
+    private final int[] firstChild;
+    private final int[] nextSibling;
+    private final int[] edge;
+    private final int maxTermLength;
+
+    SymptomResolver(Set<String> validSymptoms, Map<String, String> synonyms) {
+        this.validSymptoms = validSymptoms;
+        this.synonyms = new HashMap<>();
+        for (Map.Entry<String, String> entry : synonyms.entrySet()) {
+            if (validSymptoms.contains(entry.getValue()) && !validSymptoms.contains(entry.getKey())) {
+                this.synonyms.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        // Sorted insertion keeps the tree, and so tie-breaking, independent of set order
+        TreeSet<String> names = new TreeSet<>(validSymptoms);
+        TreeSet<String> aliases = new TreeSet<>(this.synonyms.keySet());
+        int capacity = names.size() + aliases.size();
+        terms = new String[capacity];
+        canonical = new String[capacity];
+        firstChild = new int[capacity];
+        nextSibling = new int[capacity];
+        edge = new int[capacity];
+        Arrays.fill(firstChild, -1);
+        Arrays.fill(nextSibling, -1);
+        int longest = 0;
+        for (String term : names) {
+            longest = Math.max(longest, term.length());
+        }
+        for (String term : aliases) {
+            longest = Math.max(longest, term.length());
+        }
+        maxTermLength = longest;
+
+        int[] previous = new int[longest + 1];
+        int[] row = new int[longest + 1];
+        int size = 0;
+        for (String name : names) {
+            size = insert(size, name, name, previous, row);
+        }
+        for (String alias : aliases) {
+            size = insert(size, alias, this.synonyms.get(alias), previous, row);
+        }
+    }
+
+    // Adds a node for the term; returns the new node count
+    private int insert(int size, String term, String target, int[] previous, int[] row) {
+        if (size == 0) {
+            terms[0] = term;
+            canonical[0] = target;
+            return 1;
+        }
+        int node = 0;
+        while (true) {
+            int distance = distance(term, terms[node], previous, row);
+            if (distance == 0) {
+                return size;
+            }
+            int child = firstChild[node];
+            while (child >= 0 && edge[child] != distance) {
+                child = nextSibling[child];
+            }
+            if (child < 0) {
+                terms[size] = term;
+                canonical[size] = target;
+                edge[size] = distance;
+                nextSibling[size] = firstChild[node];
+                firstChild[node] = size;
+                return size + 1;
+            }
+            node = child;
+        }
+    }
+
+    public static String normalize(String symptom) {
+        return symptom.trim().toLowerCase();
+    }
+
+    // Edits allowed for a fuzzy match: none for very short input, where one edit is
+    // usually another word, then one, then two from six characters up
+    static int maxDistance(int length) {
+        return length <= 3 ? 0 : length <= 5 ? 1 : 2;
+    }
+
+    // Returns the canonical symptom for the input, or null if it is unknown or two
+    // different symptoms are equally close
+    public String resolve(String symptom) {
+        String normalized = normalize(symptom);
+        if (validSymptoms.contains(normalized)) {
+            return normalized;
+        }
+        String target = synonyms.get(normalized);
+        if (target != null) {
+            return target;
+        }
+        List<Match> matches = search(normalized);
+        if (matches.isEmpty()) {
+            return null;
+        }
+        Match best = matches.get(0);
+        if (matches.size() > 1 && matches.get(1).distance() == best.distance()) {
+            return null;
+        }
+        return best.symptom();
+    }
+
+    // Canonical symptoms within the edit bound of the input, closest first
+    public List<String> suggestions(String symptom, int limit) {
+        List<Match> matches = search(normalize(symptom));
+        List<String> result = new ArrayList<>(Math.min(limit, matches.size()));
+        for (int i = 0; i < matches.size() && result.size() < limit; i++) {
+            result.add(matches.get(i).symptom());
+        }
+        return result;
+    }
+
+    private record Match(String symptom, int distance) {}
+
+    // One match per canonical symptom (its closest name or alias), by distance then name
+    private List<Match> search(String query) {
+        int bound = maxDistance(query.length());
+        if (bound == 0 || terms.length == 0 || query.length() > maxTermLength + bound) {
+            return List.of();
+        }
+        int[] previous = new int[Math.max(query.length(), maxTermLength) + 1];
+        int[] row = new int[previous.length];
+        Map<String, Integer> closest = new HashMap<>();
+        int[] stack = new int[16];
+        int depth = 0;
+        stack[depth++] = 0;
+        while (depth > 0) {
+            int node = stack[--depth];
+            int distance = distance(query, terms[node], previous, row);
+            if (distance <= bound) {
+                closest.merge(canonical[node], distance, Math::min);
+            }
+            for (int child = firstChild[node]; child >= 0; child = nextSibling[child]) {
+                if (Math.abs(edge[child] - distance) <= bound) {
+                    if (depth == stack.length) {
+                        stack = Arrays.copyOf(stack, depth * 2);
+                    }
+                    stack[depth++] = child;
+                }
+            }
+        }
+        List<Match> matches = new ArrayList<>(closest.size());
+        for (Map.Entry<String, Integer> entry : closest.entrySet()) {
+            matches.add(new Match(entry.getKey(), entry.getValue()));
+        }
+        matches.sort((a, b) -> a.distance() != b.distance()
+                ? Integer.compare(a.distance(), b.distance()) : a.symptom().compareTo(b.symptom()));
+        return matches;
+    }
+
+    // Levenshtein distance over two reused rows, each at least b.length() + 1 long
+    private static int distance(String a, String b, int[] previous, int[] row) {
+        int m = b.length();
+        for (int j = 0; j <= m; j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            row[0] = i;
+            char c = a.charAt(i - 1);
+            for (int j = 1; j <= m; j++) {
+                int substitution = previous[j - 1] + (c == b.charAt(j - 1) ? 0 : 1);
+                row[j] = Math.min(substitution, Math.min(previous[j], row[j - 1]) + 1);
+            }
+            int[] swap = previous;
+            previous = row;
+            row = swap;
+        }
+        return previous[m];
+    }
+}
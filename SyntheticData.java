@@ -0,0 +1,91 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+// Writes synthetic symptoms.txt, disease.txt and medicalDatabase.csv files for benchmarking.
+// Usage: java SyntheticData <directory> [symptoms] [diseases] [records]
+final class SyntheticData {
+    // Marks a directory as generated, so MedicalBenchmark never writes into real patient data
+    static final String MARKER_FILE = ".synthetic";
+    private static final int SYMPTOMS_PER_RECORD = 4;
+
+    private SyntheticData() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: java SyntheticData <directory> [symptoms] [diseases] [records]");
+            System.exit(2);
+        }
+        int symptoms = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        int diseases = args.length > 2 ? Integer.parseInt(args[2]) : 50_000;
+        long records = args.length > 3 ? Long.parseLong(args[3]) : 10_000_000L;
+        long start = System.nanoTime();
+        generate(Path.of(args[0]), symptoms, diseases, records, 42);
+        System.out.printf("Generated %d symptoms, %d diseases, %d records in %.1f s%n",
+                symptoms, diseases, records, (System.nanoTime() - start) / 1e9);
+    }
+
+    public static void generate(Path directory, int symptoms, int diseases, long records, long seed)
+            throws IOException {
+        Files.createDirectories(directory);
+        Files.writeString(directory.resolve(MARKER_FILE), "generated by SyntheticData\n");
+        try (BufferedWriter writer = Files.newBufferedWriter(directory.resolve(MedicalDataBase.SYMPTOMS_FILE),
+                StandardCharsets.UTF_8)) {
+            for (int i = 0; i < symptoms; i++) {
+                writer.write(symptomName(i));
+                writer.write('\n');
+            }
+        }
+        try (BufferedWriter writer = Files.newBufferedWriter(directory.resolve(MedicalDataBase.DISEASES_FILE),
+                StandardCharsets.UTF_8)) {
+            for (int i = 0; i < diseases; i++) {
+                writer.write(diseaseName(i));
+                writer.write('\n');
+            }
+        }
+
+        // Each disease draws its symptoms from a small neighbourhood, so common
+        // combinations recur the way real presentations do
+        Random random = new Random(seed);
+        try (BufferedWriter writer = Files.newBufferedWriter(directory.resolve(MedicalDataBase.DATABASE_FILE),
+                StandardCharsets.UTF_8)) {
+            writer.write("patient id|patient name|symptoms list|possible disease\n");
+            StringBuilder line = new StringBuilder(128);
+            for (long r = 0; r < records; r++) {
+                int disease = skewed(random, diseases);
+                line.setLength(0);
+                line.append("P000|Setup|");
+                int base = (int) ((disease * 2654435761L) % symptoms);
+                int count = 1 + random.nextInt(SYMPTOMS_PER_RECORD);
+                for (int s = 0; s < count; s++) {
+                    if (s > 0) {
+                        line.append(',');
+                    }
+                    line.append(symptomName((base + random.nextInt(16)) % symptoms));
+                }
+                line.append('|').append(diseaseName(disease)).append('\n');
+                writer.append(line);
+            }
+        }
+        // Mappings only; the benchmarks write their encounters to an empty log
+        Files.createDirectories(directory.resolve(EncounterLog.DIRECTORY));
+    }
+
+    static String symptomName(int id) {
+        return "symptom " + id;
+    }
+
+    static String diseaseName(int id) {
+        return "disease " + id;
+    }
+
+    // Roughly Zipf-like: low IDs are drawn far more often than high ones
+    static int skewed(Random random, int bound) {
+        double u = random.nextDouble();
+        return (int) Math.min(bound - 1, Math.floor(Math.pow(bound, u)) - 1);
+    }
+}
@@ -0,0 +1,7 @@
+class UnrecognizedDiseaseException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public UnrecognizedDiseaseException(String message) {
+        super(message);
+    }
+}
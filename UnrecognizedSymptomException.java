@@ -0,0 +1,7 @@
+class UnrecognizedSymptomException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public UnrecognizedSymptomException(String message) {
+        super(message);
+    }
+}